@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generator of synthetic bundles for the benchmarks. Bundle i exports package "gen.b{i}" and imports the packages of
+ * the "fanOut" bundles preceding it, so the fan-out determines how much wiring the resolver has to do.
+ */
+class BundleGenerator {
+	private final int fanOut;
+
+	BundleGenerator(int fanOut) {
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * Generate a number of bundles in a directory.
+	 *
+	 * @param dir The directory to write the bundles to. Is created when needed
+	 * @param count The number of bundles
+	 * @throws IOException In case the bundles cannot be written
+	 */
+	void generate(File dir, int count) throws IOException {
+		dir.mkdirs();
+		for (int i = 0; i < count; i++) {
+			write(dir, i, 0);
+		}
+	}
+
+	/**
+	 * Write a single bundle. A different revision gives a different jar, like a rebuilt bundle would be.
+	 *
+	 * @param dir The directory to write the bundle to
+	 * @param i The number of the bundle
+	 * @param revision The revision of the bundle contents
+	 * @return The bundle file
+	 * @throws IOException In case the bundle cannot be written
+	 */
+	File write(File dir, int i, int revision) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attrs = manifest.getMainAttributes();
+		attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attrs.putValue("Bundle-ManifestVersion", "2");
+		attrs.putValue("Bundle-SymbolicName", "gen.b" + i);
+		attrs.putValue("Bundle-Version", "1.0.0");
+		attrs.putValue("Export-Package", "gen.b" + i);
+		StringBuilder imports = new StringBuilder();
+		for (int j = Math.max(0, i - fanOut); j < i; j++) {
+			if (imports.length() > 0) {
+				imports.append(',');
+			}
+			imports.append("gen.b").append(j);
+		}
+		if (imports.length() > 0) {
+			attrs.putValue("Import-Package", imports.toString());
+		}
+		File file = new File(dir, "gen.b" + i + ".jar");
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest)) {
+			out.putNextEntry(new JarEntry("gen/b" + i + "/revision.txt"));
+			out.write(String.valueOf(revision).getBytes(StandardCharsets.UTF_8));
+			out.closeEntry();
+		}
+		return file;
+	}
+
+	/**
+	 * Delete a directory with its contents.
+	 */
+	static void delete(File dir) {
+		File[] contents = dir.listFiles();
+		if (contents != null) {
+			for (File f : contents) {
+				delete(f);
+			}
+		}
+		dir.delete();
+	}
+}
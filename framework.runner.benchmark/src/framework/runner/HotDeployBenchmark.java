@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of a single hot-deploy cycle: the first generated bundle, on which the others depend, is rewritten and
+ * handled as a changed file. The cycle covers the update, the refresh of the bundle and its dependents and the wait
+ * for the refresh to complete.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HotDeployBenchmark {
+	@Param({ "100", "400" })
+	public int bundles;
+	@Param({ "0", "4" })
+	public int fanOut;
+	private File dir;
+	private BundleGenerator generator;
+	private Runner runner;
+	private File changed;
+	private int revision;
+
+	@Setup(Level.Trial)
+	public void launch() throws Exception {
+		dir = Files.createTempDirectory("runner-bench").toFile();
+		generator = new BundleGenerator(fanOut);
+		generator.generate(new File(dir, "bundles"), bundles);
+		runner = Runner.launch(StartupBenchmark.arguments(dir, ""));
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws Exception {
+		runner.getFramework().stop();
+		runner.getFramework().waitForStop(0);
+		BundleGenerator.delete(dir);
+	}
+
+	@Setup(Level.Invocation)
+	public void rewrite() throws Exception {
+		changed = generator.write(new File(dir, "bundles"), 0, ++revision);
+	}
+
+	@Benchmark
+	public void update() {
+		runner.handleChanges(runner.getBundles(), Collections.singletonList(changed));
+	}
+}
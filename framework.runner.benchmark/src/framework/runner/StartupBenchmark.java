@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the install/refresh/start sequence of the runner. Every invocation launches a framework with a clean
+ * storage area on a directory with generated bundles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+	@Param({ "100", "400" })
+	public int bundles;
+	@Param({ "0", "4" })
+	public int fanOut;
+	/** Additional runner options, like "-j 4 -s 4". */
+	@Param({ "" })
+	public String options;
+	private File dir;
+	private Runner runner;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		dir = Files.createTempDirectory("runner-bench").toFile();
+		new BundleGenerator(fanOut).generate(new File(dir, "bundles"), bundles);
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() {
+		BundleGenerator.delete(dir);
+	}
+
+	@TearDown(Level.Iteration)
+	public void stop() throws Exception {
+		if (runner != null) {
+			runner.getFramework().stop();
+			runner.getFramework().waitForStop(0);
+			runner = null;
+		}
+	}
+
+	static String[] arguments(File dir, String options) {
+		// The paths are passed as they are, they may contain spaces.
+		List<String> args = new ArrayList<>(Arrays.asList("-d", new File(dir, "bundles").getPath(),
+				"-p", "org.osgi.framework.storage=" + new File(dir, "storage"),
+				"-p", "org.osgi.framework.storage.clean=onFirstInit"));
+		for (String option : options.trim().split("\\s+")) {
+			if (option.length() > 0) {
+				args.add(option);
+			}
+		}
+		return args.toArray(new String[args.size()]);
+	}
+
+	@Benchmark
+	public Runner startup() throws Exception {
+		runner = Runner.launch(arguments(dir, options));
+		return runner;
+	}
+}
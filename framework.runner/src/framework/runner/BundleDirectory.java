@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+
+/**
+ * A directory that is scanned for bundle files, as passed with the -d and -r options. The match expression is
+ * matched against the absolute path of the files. It is a regular expression, unless it is prefixed with "glob:", in
+ * which case it is a glob pattern. A "regex:" prefix is allowed as well.
+ */
+class BundleDirectory {
+	private static final String GLOB = "glob:";
+	private static final String REGEX = "regex:";
+	final File dir;
+	final boolean recursive;
+	private final PathMatcher match;
+
+	BundleDirectory(File dir, String match, boolean recursive) {
+		this.dir = dir;
+		this.match = FileSystems.getDefault().getPathMatcher(
+				match.startsWith(GLOB) || match.startsWith(REGEX) ? match : REGEX + match);
+		this.recursive = recursive;
+	}
+
+	/**
+	 * Check whether a file is a candidate bundle file for this directory.
+	 *
+	 * @param path The file to check. The pattern is matched against the absolute path
+	 * @return true when the file matches the pattern of this directory
+	 */
+	boolean accept(Path path) {
+		return match.matches(path.toAbsolutePath());
+	}
+
+	boolean accept(File file) {
+		return accept(file.toPath());
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scanner of bundle directories. Every directory is listed in a separate fork/join task, so large trees are scanned
+ * in parallel. The result is ordered as a sequential depth-first scan would order it: the files of a sub directory
+ * are at the position of that sub directory in its parent.
+ */
+class DirectoryScanner {
+	private static final LinkOption[] NOFOLLOW = new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+	private static final LinkOption[] FOLLOW = new LinkOption[0];
+	private final boolean followLinks;
+
+	/**
+	 * Create a scanner.
+	 *
+	 * @param followLinks Indication whether symbolic links to directories are followed in recursive scans
+	 */
+	DirectoryScanner(boolean followLinks) {
+		this.followLinks = followLinks;
+	}
+
+	private class ScanTask extends RecursiveTask<List<File>> {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		private final BundleDirectory directory;
+		private final Set<Object> visited;
+
+		ScanTask(Path dir, BundleDirectory directory, Set<Object> visited) {
+			this.dir = dir;
+			this.directory = directory;
+			this.visited = visited;
+		}
+
+		@SuppressWarnings("synthetic-access")
+		@Override
+		protected List<File> compute() {
+			// Entries are either a file or a forked task for a sub directory.
+			List<Object> entries = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path path : stream) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(path, BasicFileAttributes.class, followLinks ? FOLLOW : NOFOLLOW);
+					} catch (IOException exc) {
+						// Broken link or removed in the mean time.
+						continue;
+					}
+					if (attrs.isDirectory()) {
+						if (directory.recursive && firstVisit(path, attrs, visited)) {
+							entries.add(new ScanTask(path, directory, visited).fork());
+						}
+					}
+					else if (directory.accept(path)) {
+						entries.add(path.toFile());
+					}
+				}
+			} catch (IOException exc) {
+				// Not readable: no files.
+			}
+			List<File> files = new ArrayList<>();
+			for (Object entry : entries) {
+				if (entry instanceof File) {
+					files.add((File) entry);
+				}
+				else {
+					files.addAll(((ScanTask) entry).join());
+				}
+			}
+			return files;
+		}
+	}
+
+	/**
+	 * Check whether a directory is visited for the first time during the scan of a bundle directory. Only relevant
+	 * when links are followed, to prevent endless loops.
+	 */
+	private boolean firstVisit(Path dir, BasicFileAttributes attrs, Set<Object> visited) {
+		if (!followLinks) {
+			return true;
+		}
+		Object key = attrs.fileKey();
+		if (key == null) {
+			try {
+				key = dir.toRealPath();
+			} catch (IOException exc) {
+				return false;
+			}
+		}
+		return visited.add(key);
+	}
+
+	/**
+	 * Scan the directories for bundle files. Directories that do not exist or cannot be read are skipped.
+	 *
+	 * @param directories The directories to scan
+	 * @return The matching files, in the order of the directories
+	 */
+	List<File> scan(Collection<BundleDirectory> directories) {
+		List<ScanTask> tasks = new ArrayList<>();
+		for (BundleDirectory directory : directories) {
+			Path dir = directory.dir.toPath();
+			if (Files.isDirectory(dir) && Files.isReadable(dir)) {
+				Set<Object> visited = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+				if (followLinks) {
+					try {
+						firstVisit(dir, Files.readAttributes(dir, BasicFileAttributes.class), visited);
+					} catch (IOException exc) {
+						continue;
+					}
+				}
+				tasks.add(new ScanTask(dir, directory, visited));
+			}
+		}
+		List<File> files = new ArrayList<>();
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			for (ScanTask task : tasks) {
+				pool.execute(task);
+			}
+			for (ScanTask task : tasks) {
+				files.addAll(task.join());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return files;
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watcher of the bundle directories. Uses a {@link WatchService} to get notified of created, modified and deleted
+ * files, so there is no need to poll every bundle file. Changes are debounced and coalesced: the changed files are
+ * only reported, as one batch, once no events were received during the quiet period and none of their sizes changed
+ * in the mean time. This way partially written files are not picked up and a burst of changes results in a single
+ * batch.
+ */
+class DirectoryWatcher implements Runnable {
+	private final WatchService service;
+	private final Map<WatchKey, Watched> keys = new HashMap<>();
+	private final Map<File, Pending> pending = new HashMap<>();
+	private final long quiet;
+	private final boolean followLinks;
+	private final Listener listener;
+
+	/**
+	 * Listener for file changes.
+	 */
+	interface Listener {
+		/**
+		 * Called with the files that were created, modified or deleted. A deleted directory is reported as
+		 * well, meaning that all files below it are gone.
+		 *
+		 * @param files The changed files
+		 */
+		void filesChanged(Collection<File> files);
+	}
+
+	private static class Watched {
+		final Path path;
+		final BundleDirectory directory;
+
+		Watched(Path path, BundleDirectory directory) {
+			this.path = path;
+			this.directory = directory;
+		}
+	}
+
+	private static class Pending {
+		long time;
+		long size;
+
+		Pending(long time, long size) {
+			this.time = time;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Create the watcher and register the directories.
+	 *
+	 * @param directories The directories to watch. Recursive directories are watched including all their sub
+	 * directories
+	 * @param quiet The quiet period in milliseconds
+	 * @param followLinks Indication whether symbolic links to directories are followed in recursive directories,
+	 * like the {@link DirectoryScanner} does
+	 * @param listener The listener to report the changes to
+	 * @throws IOException In case the watch service cannot be created
+	 */
+	DirectoryWatcher(Collection<BundleDirectory> directories, long quiet, boolean followLinks, Listener listener)
+			throws IOException {
+		this.service = FileSystems.getDefault().newWatchService();
+		this.quiet = quiet;
+		this.followLinks = followLinks;
+		this.listener = listener;
+		for (BundleDirectory directory : directories) {
+			if (directory.dir.isDirectory()) {
+				register(directory.dir.toPath(), directory, false);
+			}
+		}
+	}
+
+	/**
+	 * Register a directory. When the directory is new (created while watching), the files already in it are
+	 * marked as changed, since their creation events may have been missed.
+	 */
+	private void register(Path path, final BundleDirectory directory, final boolean created) throws IOException {
+		if (!directory.recursive) {
+			keys.put(path.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), new Watched(path, directory));
+			return;
+		}
+		Set<FileVisitOption> options =
+				followLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class);
+		Files.walkFileTree(path, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				keys.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), new Watched(dir, directory));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (created) {
+					mark(file.toFile(), directory);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				if (exc instanceof FileSystemLoopException) {
+					// A link back to a directory that is already watched.
+					return FileVisitResult.CONTINUE;
+				}
+				throw exc;
+			}
+		});
+	}
+
+	private void mark(File file, BundleDirectory directory) {
+		if (directory.accept(file)) {
+			pending.put(file, new Pending(System.currentTimeMillis(), file.length()));
+		}
+	}
+
+	/**
+	 * Close the watcher. Causes the {@link #run()} method to terminate.
+	 */
+	void close() {
+		try {
+			service.close();
+		} catch (IOException exc) {
+			// Ignore, we are stopping anyway.
+		}
+	}
+
+	private void handle(WatchKey key) {
+		Watched watched = keys.get(key);
+		if (watched == null) {
+			key.cancel();
+			return;
+		}
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				// Events are lost. Treat every file in the directory as changed. Deletions cannot be recovered.
+				File[] contents = watched.path.toFile().listFiles();
+				if (contents != null) {
+					for (File f : contents) {
+						if (f.isFile()) {
+							mark(f, watched.directory);
+						}
+					}
+				}
+				continue;
+			}
+			Path path = watched.path.resolve((Path) event.context());
+			File file = path.toFile();
+			if (event.kind() == ENTRY_DELETE) {
+				pending.put(file, new Pending(System.currentTimeMillis(), -1L));
+			}
+			else if (followLinks ? Files.isDirectory(path) : Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				if (event.kind() == ENTRY_CREATE && watched.directory.recursive) {
+					try {
+						register(path, watched.directory, true);
+					} catch (IOException exc) {
+						// Directory is gone or not readable. Nothing to watch.
+					}
+				}
+			}
+			else {
+				mark(file, watched.directory);
+			}
+		}
+		if (!key.reset()) {
+			keys.remove(key);
+		}
+	}
+
+	/**
+	 * Collect the pending files when all of them are stable: no events during the quiet period and unchanged sizes.
+	 *
+	 * @return The pending files, or an empty list when at least one of them is not yet stable
+	 */
+	private List<File> stable() {
+		long now = System.currentTimeMillis();
+		boolean stable = true;
+		for (Map.Entry<File, Pending> entry : pending.entrySet()) {
+			Pending p = entry.getValue();
+			if (now - p.time < quiet) {
+				stable = false;
+				continue;
+			}
+			File file = entry.getKey();
+			long size = file.exists() ? file.length() : -1L;
+			if (size != p.size) {
+				// Still being written.
+				p.time = now;
+				p.size = size;
+				stable = false;
+			}
+		}
+		if (!stable) {
+			return new ArrayList<>();
+		}
+		List<File> files = new ArrayList<>(pending.keySet());
+		pending.clear();
+		return files;
+	}
+
+	/**
+	 * Watch the directories until the watcher is closed or the thread is interrupted.
+	 */
+	@Override
+	public void run() {
+		try {
+			for (;;) {
+				WatchKey key = pending.isEmpty() ? service.take() : service.poll(quiet, TimeUnit.MILLISECONDS);
+				while (key != null) {
+					handle(key);
+					key = service.poll();
+				}
+				List<File> files = stable();
+				if (files.size() > 0) {
+					listener.filesChanged(files);
+				}
+			}
+		} catch (ClosedWatchServiceException exc) {
+			// Closed, stop watching.
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Index of the bundle headers of candidate bundle files. Only the manifest of a file is read, so files can be
+ * classified as bundle, fragment or plain jar without installing them in the framework. The index can be persisted
+ * to a file, in which case unchanged files (same path, size and modification time) are not read again on the next
+ * run.
+ */
+class ManifestIndex {
+	private static final String SEP = "|";
+	private final File store;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile boolean changed;
+
+	/**
+	 * Headers of a single file. The symbolic name is null when the file is not a bundle.
+	 */
+	static class Entry {
+		final long size;
+		final long modified;
+		final String symbolicName;
+		final String version;
+		final String fragmentHost;
+
+		Entry(long size, long modified, String symbolicName, String version, String fragmentHost) {
+			this.size = size;
+			this.modified = modified;
+			this.symbolicName = symbolicName;
+			this.version = version;
+			this.fragmentHost = fragmentHost;
+		}
+
+		boolean isBundle() {
+			return symbolicName != null;
+		}
+
+		boolean isFragment() {
+			return fragmentHost != null;
+		}
+	}
+
+	/**
+	 * Create the index.
+	 *
+	 * @param store The file the index is persisted in. May be null, in which case the index is only kept in memory
+	 */
+	ManifestIndex(File store) {
+		this.store = store;
+		if (store != null && store.canRead()) {
+			load();
+		}
+	}
+
+	private static String nullable(String value) {
+		return value.length() == 0 ? null : value;
+	}
+
+	private static String valueOf(String value) {
+		return value == null ? "" : value;
+	}
+
+	private void load() {
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(store)) {
+			props.load(in);
+		} catch (IOException exc) {
+			return;
+		}
+		for (String path : props.stringPropertyNames()) {
+			String[] values = props.getProperty(path).split("\\" + SEP, -1);
+			if (values.length != 5) {
+				continue;
+			}
+			try {
+				entries.put(path, new Entry(Long.parseLong(values[0]), Long.parseLong(values[1]),
+						nullable(values[2]), nullable(values[3]), nullable(values[4])));
+			} catch (NumberFormatException exc) {
+				// Ignore the entry, it will be read again.
+			}
+		}
+	}
+
+	/**
+	 * Persist the index, if a store was given and the index changed. Entries of files that no longer exist are
+	 * dropped.
+	 *
+	 * @throws IOException In case the index cannot be written
+	 */
+	void save() throws IOException {
+		if (store == null || !changed) {
+			return;
+		}
+		Properties props = new Properties();
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (!new File(e.getKey()).exists()) {
+				entries.remove(e.getKey());
+				continue;
+			}
+			Entry entry = e.getValue();
+			props.setProperty(e.getKey(), entry.size + SEP + entry.modified + SEP + valueOf(entry.symbolicName) +
+					SEP + valueOf(entry.version) + SEP + valueOf(entry.fragmentHost));
+		}
+		try (OutputStream out = new FileOutputStream(store)) {
+			props.store(out, "Bundle manifest index");
+		}
+		changed = false;
+	}
+
+	/**
+	 * Strip any attributes and directives from a header value, like "org.x;singleton:=true".
+	 */
+	private static String mainValue(String header) {
+		if (header == null) {
+			return null;
+		}
+		int index = header.indexOf(';');
+		String value = (index < 0 ? header : header.substring(0, index)).trim();
+		return value.length() == 0 ? null : value;
+	}
+
+	/**
+	 * Get the entry of a file as it is in the index, without checking or reading the file.
+	 *
+	 * @param file The file
+	 * @return The entry, or null when the file is not in the index
+	 */
+	Entry known(File file) {
+		return entries.get(file.getAbsolutePath());
+	}
+
+	/**
+	 * Get the headers of a file. The manifest is only read when the file is not in the index or when its size or
+	 * modification time changed.
+	 *
+	 * @param file The file to get the headers for
+	 * @return The headers, or null when the file cannot be read as jar file. In that case the caller cannot
+	 * classify the file and must let the framework decide
+	 */
+	Entry get(File file) {
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long modified = file.lastModified();
+		Entry entry = entries.get(path);
+		if (entry != null && entry.size == size && entry.modified == modified) {
+			return entry;
+		}
+		try (JarFile jar = new JarFile(file, false)) {
+			Manifest manifest = jar.getManifest();
+			if (manifest == null) {
+				entry = new Entry(size, modified, null, null, null);
+			}
+			else {
+				Attributes attrs = manifest.getMainAttributes();
+				entry = new Entry(size, modified, mainValue(attrs.getValue("Bundle-SymbolicName")),
+						mainValue(attrs.getValue("Bundle-Version")), mainValue(attrs.getValue("Fragment-Host")));
+			}
+		} catch (IOException exc) {
+			entries.remove(path);
+			return null;
+		}
+		entries.put(path, entry);
+		changed = true;
+		return entry;
+	}
+}
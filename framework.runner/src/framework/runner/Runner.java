@@ -16,18 +16,28 @@
 package framework.runner;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
 import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
 import org.osgi.framework.wiring.FrameworkWiring;
@@ -39,37 +49,120 @@ import org.osgi.framework.wiring.FrameworkWiring;
  * <li>-d directory. The directory to scan for .jar/.bar files. All jar/bar files in this directory are
  * automatically handled as bundles.</li>
  * <li>-r directory (match). The directory to scan recursive for bundle files. The "match" argument indicates a regex expression
- * that is matched against the full path (defaults to .*[bj]ar$, meaning: all bar/jar files).
+ * that is matched against the full path (defaults to .*[bj]ar$, meaning: all bar/jar files). When prefixed with
+ * "glob:", the argument is a glob pattern instead, like "glob:**.jar". The directories are scanned in parallel.
  * <li>-p property. An OSGi property that is set to the framework. Properties take the format key=value,
  * like "org.osgi.framework.bootdelegation=*".
  * </li>
+ * <li>-l. Do not follow symbolic links to directories when scanning or watching recursively. By default links are
+ * followed.</li>
+ * <li>-w seconds. Check the installed bundle files every given number of seconds for modifications and update the
+ * bundles that changed.</li>
+ * <li>-j threads. Install the bundles concurrently using the given number of threads. Defaults to 1, meaning
+ * that the bundles are installed one by one.</li>
+ * <li>-s threads. Start the bundles concurrently using the given number of threads. A bundle is only started
+ * after the bundles it is wired to are started and bundles with a lower start level are started first. Defaults
+ * to 1, meaning that the bundles are started one by one in file order.</li>
+ * <li>-i file. File in which the manifest index of the bundle files is kept between runs. Files are classified
+ * from their manifest before installation, meaning that jar files that are no bundle are never installed. With an
+ * index file, the manifests of unchanged files are not read again.</li>
+ * <li>-t file. Write a timing report to the given file: the install and start time per bundle, the resolve time
+ * and the time until the framework is ready, followed by the timings of every hot-deploy cycle (see -w and -e). The
+ * time until ready is reported twice: "framework" is measured from the launch of the framework and "jvm" from the
+ * start of the JVM, including its boot and class loading. The report is sorted by cost and written as JSON when the file name ends with .json, otherwise as CSV.</li>
+ * <li>-x. Stop the framework and exit as soon as it is ready. Used for training runs, like creating a class data
+ * sharing archive with -XX:ArchiveClassesAtExit (see the README).</li>
+ * <li>-c. Reconcile the bundle files with the bundles already present in a preserved framework storage
+ * (org.osgi.framework.storage). Only new files are installed, changed files are updated, bundles of removed files are
+ * uninstalled and only the changed bundles are refreshed. Bundles that are already active are not started again.</li>
+ * <li>-e. Watch the -d/-r directories for changes instead of polling the installed bundle files (see -w). New
+ * bundle files are installed and started, changed ones are updated and bundles of deleted files are uninstalled.
+ * Changes are only handled after no file changed during the quiet period (see -q), so partially copied files are
+ * skipped.</li>
+ * <li>-q milliseconds. The quiet period for -w and -e, defaults to 1000. Changes are collected until no change
+ * was seen during this period and are then handled as a single batch with a single refresh.</li>
  * </ul>
  * Multiple variants of -d and -p values can be combined.
  */
 public class Runner {
 	private Framework framework;
+	private ManifestIndex index;
+	private int verbose;
 
-	private Runner(Framework fw) {
+	private long quiet;
+	private boolean followLinks;
+	private StartupProfile profile;
+	private Map<File, Bundle> bundles;
+	private List<BundleDirectory> directories;
+	private boolean watch;
+	private long checkTime;
+	private boolean exit;
+
+	private Runner(Framework fw, ManifestIndex index, StartupProfile profile, int verbose, long quiet) {
 		framework = fw;
+		this.index = index;
+		this.profile = profile;
+		this.verbose = verbose;
+		this.quiet = quiet;
 	}
 
-	private static void refresh(Framework framework, Collection<Bundle> bundles) {
+	/**
+	 * Refresh the bundles and wait until the framework reports that the refresh is done. This makes sure that the
+	 * wiring is up-to-date before the bundles are started and that refreshes never overlap.
+	 */
+	private static void refresh(Framework framework, Collection<Bundle> bundles) throws InterruptedException {
 		FrameworkWiring wiring = framework.adapt(FrameworkWiring.class);
-		wiring.refreshBundles(bundles);
+		final CountDownLatch done = new CountDownLatch(1);
+		wiring.refreshBundles(bundles, new FrameworkListener() {
+			@Override
+			public void frameworkEvent(FrameworkEvent event) {
+				done.countDown();
+			}
+		});
+		while (!done.await(1, TimeUnit.SECONDS)) {
+			if ((framework.getState() & (Bundle.STARTING | Bundle.ACTIVE)) == 0) {
+				// The framework is stopping, the refresh will not complete.
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Get the bundle files that were modified after a specific time.
+	 */
+	private static List<File> modifiedSince(Map<File, Bundle> bundles, long since) {
+		List<File> files = new ArrayList<>();
+		for (File f : bundles.keySet()) {
+			if (f.lastModified() > since) {
+				files.add(f);
+			}
+		}
+		return files;
+	}
+
+	private static long lastModified(Collection<File> files) {
+		long last = 0L;
+		for (File f : files) {
+			last = Math.max(last, f.lastModified());
+		}
+		return last;
 	}
 
 	/**
 	 * Wait for termination. This is either done by a kill-like command or otherwise interrupting the handling. As such
-	 * a shutdown hook is installed to make sure that any clean-up is done.
+	 * a shutdown hook is installed to make sure that any clean-up is done. When a check time is given, the bundle
+	 * files are checked for modifications at that interval. Modifications are coalesced: once a modification is seen,
+	 * the files are only handled after none of them changed during the quiet period, and they are handled as a single
+	 * batch.
 	 */
-	private void waitForTermination(Map<File, Bundle> bundles, int verbose, long checkTime) {
+	private void waitForTermination(Map<File, Bundle> bundles, long checkTime) {
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			@Override
 			public void run() {
 				handleTermination();
 			}
 		}));
-		long now = System.currentTimeMillis() - checkTime;
+		long since = System.currentTimeMillis();
 		try {
 			for (;;) {
 				FrameworkEvent event = framework.waitForStop(checkTime);
@@ -77,29 +170,131 @@ public class Runner {
                     break;
                 }
 				// Check the bundles.
-				List<Bundle> updated = new ArrayList<>();
-				long lastUpdate = now;
-				for (Map.Entry<File, Bundle> entry : bundles.entrySet()) {
-					File f = entry.getKey();
-					if (f.lastModified() > lastUpdate && f.lastModified() <= now) {
-						Bundle b = entry.getValue();
-						b.update();
-						if (verbose > 0) {
-							System.out.println("Bundle: " + b + " updated");
-						}
-						updated.add(b);
+				long now = System.currentTimeMillis();
+				List<File> changed = modifiedSince(bundles, since);
+				while (changed.size() > 0 && now - lastModified(changed) < quiet) {
+					event = framework.waitForStop(quiet);
+					if (event.getType() != FrameworkEvent.WAIT_TIMEDOUT) {
+						return;
 					}
-				}
-				if (updated.size() > 0) {
-					refresh(framework, updated);
 					now = System.currentTimeMillis();
+					changed = modifiedSince(bundles, since);
+				}
+				if (changed.size() > 0) {
+					handleChanges(bundles, changed);
 				}
+				since = now;
 			}
 		} catch (Exception exc) {
 			exc.printStackTrace();
 		}
 	}
 
+	/**
+	 * Start watching the bundle directories for created, modified and deleted bundle files. Changes are handled on
+	 * the watcher thread.
+	 *
+	 * @param bundles The installed bundles, mapped by their file. Is kept up-to-date by the watcher
+	 * @param directories The directories to watch
+	 * @return The watcher, to be closed when the framework stops
+	 * @throws IOException In case the directories cannot be watched
+	 */
+	private DirectoryWatcher watch(final Map<File, Bundle> bundles, Collection<BundleDirectory> directories)
+			throws IOException {
+		DirectoryWatcher watcher = new DirectoryWatcher(directories, quiet, followLinks, new DirectoryWatcher.Listener() {
+			@Override
+			public void filesChanged(Collection<File> files) {
+				handleChanges(bundles, files);
+			}
+		});
+		Thread thread = new Thread(watcher, "Bundle directory watcher");
+		thread.setDaemon(true);
+		thread.start();
+		return watcher;
+	}
+
+	private static boolean isBelow(File file, File dir) {
+		return file.getAbsolutePath().startsWith(dir.getAbsolutePath() + File.separator);
+	}
+
+	/**
+	 * Handle a batch of changed bundle files: new files are installed, changed files are updated and bundles of
+	 * deleted files are uninstalled. All affected bundles are refreshed at once and the new bundles are started when
+	 * the refresh is done. Batches are handled one at a time.
+	 */
+	synchronized void handleChanges(Map<File, Bundle> bundles, Collection<File> files) {
+		BundleContext context = framework.getBundleContext();
+		List<Bundle> changed = new ArrayList<>();
+		Map<File, Bundle> installed = new LinkedHashMap<>();
+		for (File file : files) {
+			try {
+				Bundle b = bundles.get(file);
+				if (!file.exists()) {
+					for (Iterator<Map.Entry<File, Bundle>> it = bundles.entrySet().iterator(); it.hasNext();) {
+						Map.Entry<File, Bundle> entry = it.next();
+						if (entry.getKey().equals(file) || isBelow(entry.getKey(), file)) {
+							long start = StartupProfile.now();
+							entry.getValue().uninstall();
+							profile.record(StartupProfile.UNINSTALL, entry.getKey(), start);
+							if (verbose > 0) {
+								System.out.println("Bundle: " + entry.getValue() + " uninstalled");
+							}
+							changed.add(entry.getValue());
+							it.remove();
+						}
+					}
+				}
+				else if (b != null) {
+					long start = StartupProfile.now();
+					b.update();
+					profile.record(StartupProfile.UPDATE, file, start);
+					if (verbose > 0) {
+						System.out.println("Bundle: " + b + " updated");
+					}
+					changed.add(b);
+				}
+				else if (!hasFileName(bundles, file)) {
+					b = install(context, file, index, profile, verbose);
+					if (b != null) {
+						bundles.put(file, b);
+						installed.put(file, b);
+						changed.add(b);
+					}
+				}
+				else if (verbose > 1) {
+					System.out.println(file + " has the same name as an installed bundle file. Skipped");
+				}
+			} catch (Exception exc) {
+				if (verbose > 0) {
+					System.out.println("File: " + file + " could not be handled. Reason: " + exc.getMessage());
+				}
+			}
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+		saveIndex(index, verbose);
+		long start = StartupProfile.now();
+		try {
+			refresh(framework, changed);
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		profile.record(StartupProfile.REFRESH, changed.size() + " bundles", start);
+		start(installed, index, profile, verbose);
+		writeProfile(profile, verbose);
+	}
+
+	private static boolean hasFileName(Map<File, Bundle> bundles, File file) {
+		for (File f : bundles.keySet()) {
+			if (f.getName().equals(file.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	void handleTermination() {
 		try {
 			framework.stop();
@@ -110,32 +305,293 @@ public class Runner {
 	}
 
 	/**
-	 * Parse a directory (recursive) for files that may be a bundle. This implies that their extension must be .jar, the
-	 * directory must be readable and existing.
+	 * Install a single bundle file. Files that are known from their manifest not to be a bundle are not installed
+	 * at all. When the file turns out not to be a bundle after all (no symbolic name), the installed bundle is
+	 * removed again.
+	 *
+	 * @param context The context to install the bundle with
+	 * @param file The file to install
+	 * @param index The manifest index used to classify the file
+	 * @param profile The profile to record the installation time in
+	 * @return The installed bundle, or null when the file is not a bundle
+	 * @throws Exception In case the installation failed
+	 */
+	private static Bundle install(BundleContext context, File file, ManifestIndex index, StartupProfile profile,
+			int verbose) throws Exception {
+		long start = StartupProfile.now();
+		try {
+			return doInstall(context, file, index, verbose);
+		} finally {
+			profile.record(StartupProfile.INSTALL, file, start);
+		}
+	}
+
+	private static Bundle doInstall(BundleContext context, File file, ManifestIndex index, int verbose)
+			throws Exception {
+		ManifestIndex.Entry entry = index.get(file);
+		if (entry != null && !entry.isBundle()) {
+			if (verbose > 1) {
+				System.out.println(file + " is not a bundle. Skipped");
+			}
+			return null;
+		}
+		Bundle b = context.installBundle("file:" + file.getAbsolutePath());
+		if (b.getSymbolicName() == null) {
+			if (verbose > 1) {
+				System.out.println(file + " is not a bundle. Removing bundle id: " + b.getBundleId());
+			}
+			b.uninstall();
+			return null;
+		}
+		if (verbose > 1) {
+			System.out.println("File: " + file.getName() + ". Bundle: " + b.getSymbolicName() + ", version: " +
+					b.getVersion() + " installed. Bundle id: " + b.getBundleId());
+		}
+		return b;
+	}
+
+	private static void reportInstallFailure(File file, Throwable exc, int verbose) {
+		if (verbose > 0) {
+			System.out.println("File: " + file + " could not be installed. Reason: " + exc.getMessage());
+		}
+	}
+
+	/**
+	 * Install the bundle files. When more than one thread is requested, the installation is done concurrently
+	 * on a bounded thread pool. The returned map is in all cases ordered like the passed files.
 	 *
-	 * @param dir The directory to parse (recursive). Doesn't need to exist.
-	 * @param files The list where the files are collected
-	 * @param recursive Indication whether to perform the update recursive
-	 */
-	private static void parseFiles(File dir, List<File> files, String match, boolean recursive) {
-		if (dir.exists() && dir.isDirectory() && dir.canRead()) {
-			File[] contents = dir.listFiles();
-			if (contents == null) {
-                return;
-            }
-			for (File f : contents) {
-				if (f.isDirectory()) {
-					if (recursive) {
-						parseFiles(f, files, match, true);
+	 * @param context The context to install the bundles with
+	 * @param files The files to install
+	 * @param index The manifest index used to classify the files
+	 * @param profile The profile to record the installation times in
+	 * @param verbose The verbosity level
+	 * @param threads The number of threads to use for the installation
+	 * @return The installed bundles, mapped by their file
+	 */
+	private static Map<File, Bundle> install(final BundleContext context, Collection<File> files,
+			final ManifestIndex index, final StartupProfile profile, final int verbose, int threads) {
+		Map<File, Bundle> bundles = new LinkedHashMap<>();
+		if (threads <= 1) {
+			for (File file : files) {
+				try {
+					Bundle b = install(context, file, index, profile, verbose);
+					if (b != null) {
+						bundles.put(file, b);
 					}
+				} catch (Exception exc) {
+					reportInstallFailure(file, exc, verbose);
 				}
-				else if (Pattern.matches(match, f.getAbsolutePath())) {
-					files.add(f);
+			}
+			return bundles;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Map<File, Future<Bundle>> results = new LinkedHashMap<>();
+			for (final File file : files) {
+				results.put(file, executor.submit(new Callable<Bundle>() {
+					@Override
+					public Bundle call() throws Exception {
+						return install(context, file, index, profile, verbose);
+					}
+				}));
+			}
+			for (Map.Entry<File, Future<Bundle>> entry : results.entrySet()) {
+				try {
+					Bundle b = entry.getValue().get();
+					if (b != null) {
+						bundles.put(entry.getKey(), b);
+					}
+				} catch (ExecutionException exc) {
+					reportInstallFailure(entry.getKey(), exc.getCause(), verbose);
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					reportInstallFailure(entry.getKey(), exc, verbose);
 				}
 			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return bundles;
+	}
+
+	private static void writeProfile(StartupProfile profile, int verbose) {
+		try {
+			profile.write();
+		} catch (Exception exc) {
+			if (verbose > 0) {
+				System.out.println("Profile could not be written. Reason: " + exc.getMessage());
+			}
+		}
+	}
+
+	private static void saveIndex(ManifestIndex index, int verbose) {
+		try {
+			index.save();
+		} catch (Exception exc) {
+			if (verbose > 0) {
+				System.out.println("Index could not be saved. Reason: " + exc.getMessage());
+			}
 		}
 	}
 
+	/**
+	 * Start a bundle, unless it is a fragment.
+	 *
+	 * @param file The file the bundle was installed from
+	 * @param b The bundle to start
+	 * @param index The manifest index used to check whether the bundle is a fragment
+	 * @param profile The profile to record the start time in
+	 * @param verbose The verbosity level
+	 * @throws BundleException In case the bundle cannot be started
+	 */
+	private static void start(File file, Bundle b, ManifestIndex index, StartupProfile profile, int verbose)
+			throws BundleException {
+		ManifestIndex.Entry headers = index.get(file);
+		boolean fragment = headers == null ? b.getHeaders().get("Fragment-Host") != null : headers.isFragment();
+		if (!fragment) {
+			if (verbose > 2) {
+				System.out.println("Starting bundle: " + b);
+			}
+			long start = StartupProfile.now();
+			b.start();
+			profile.record(StartupProfile.START, file, start);
+			if (verbose > 0) {
+				System.out.println("Bundle: " + b.getBundleId() + " started");
+			}
+		}
+	}
+
+	/**
+	 * Start newly installed bundles after a hot-deploy cycle. Failures are reported, not thrown.
+	 */
+	private static void start(Map<File, Bundle> bundles, ManifestIndex index, StartupProfile profile, int verbose) {
+		for (Map.Entry<File, Bundle> entry : bundles.entrySet()) {
+			try {
+				start(entry.getKey(), entry.getValue(), index, profile, verbose);
+			} catch (Exception exc) {
+				if (verbose > 0) {
+					System.out.println("Bundle: " + entry.getValue() + " could not be started. Reason: " +
+							exc.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start bundles concurrently. A bundle is started as soon as the bundles it depends on are started (see
+	 * {@link StartPlan}), only the start levels are started one after the other. Failures are reported, not thrown.
+	 *
+	 * @param bundles The bundles to start, mapped by their file
+	 * @param index The manifest index used to check whether a bundle is a fragment
+	 * @param profile The profile to record the start times in
+	 * @param verbose The verbosity level
+	 * @param threads The number of threads to start the bundles with
+	 * @throws InterruptedException In case the start is interrupted
+	 */
+	private static void start(Map<File, Bundle> bundles, final ManifestIndex index, final StartupProfile profile,
+			final int verbose, int threads) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			new StartPlan(bundles).start(executor, new StartPlan.Starter() {
+				@Override
+				public void start(File file, Bundle bundle) {
+					Map<File, Bundle> single = new LinkedHashMap<>();
+					single.put(file, bundle);
+					Runner.start(single, index, profile, verbose);
+				}
+			});
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reconcile the bundles already present in the (persistent) framework storage with the bundle files. Only new
+	 * files are installed and only files whose size or modification time differs from the one in the manifest index
+	 * are updated. Bundles that were installed from a file that is no longer present are uninstalled.
+	 *
+	 * @param context The context of the framework
+	 * @param files The bundle files
+	 * @param index The manifest index used to classify the files
+	 * @param profile The profile to record the installation and update times in
+	 * @param verbose The verbosity level
+	 * @param threads The number of threads to use for the installation of new files
+	 * @param changed Collection to which all installed, updated and uninstalled bundles are added
+	 * @return The bundles, mapped by their file and ordered like the passed files
+	 */
+	private static Map<File, Bundle> reconcile(BundleContext context, Collection<File> files, ManifestIndex index,
+			StartupProfile profile, int verbose, int threads, Collection<Bundle> changed) {
+		Map<String, Bundle> existing = new HashMap<>();
+		for (Bundle b : context.getBundles()) {
+			if (b.getBundleId() != 0 && b.getLocation().startsWith("file:")) {
+				existing.put(b.getLocation(), b);
+			}
+		}
+		Map<File, Bundle> current = new HashMap<>();
+		List<File> added = new ArrayList<>();
+		for (File file : files) {
+			Bundle b = existing.remove("file:" + file.getAbsolutePath());
+			if (b == null) {
+				added.add(file);
+				continue;
+			}
+			// The size and time the file had when it was last read, before the index is updated.
+			ManifestIndex.Entry known = index.known(file);
+			ManifestIndex.Entry entry = index.get(file);
+			try {
+				if (entry != null && !entry.isBundle()) {
+					if (verbose > 1) {
+						System.out.println(file + " is no longer a bundle. Removing bundle id: " + b.getBundleId());
+					}
+					b.uninstall();
+					changed.add(b);
+					continue;
+				}
+				// Any difference is a change, also an older file (a rollback) or a copy with the time preserved.
+				boolean modified = known == null ? file.lastModified() > b.getLastModified()
+						: known.size != file.length() || known.modified != file.lastModified();
+				if (modified) {
+					long start = StartupProfile.now();
+					b.update();
+					profile.record(StartupProfile.UPDATE, file, start);
+					if (verbose > 0) {
+						System.out.println("Bundle: " + b + " updated");
+					}
+					changed.add(b);
+				}
+				current.put(file, b);
+			} catch (Exception exc) {
+				if (verbose > 0) {
+					System.out.println("File: " + file + " could not be updated. Reason: " + exc.getMessage());
+				}
+			}
+		}
+		for (Bundle b : existing.values()) {
+			try {
+				b.uninstall();
+				if (verbose > 0) {
+					System.out.println("Bundle: " + b + " uninstalled");
+				}
+				changed.add(b);
+			} catch (Exception exc) {
+				if (verbose > 0) {
+					System.out.println("Bundle: " + b + " could not be uninstalled. Reason: " + exc.getMessage());
+				}
+			}
+		}
+		Map<File, Bundle> installed = install(context, added, index, profile, verbose, threads);
+		changed.addAll(installed.values());
+		current.putAll(installed);
+		Map<File, Bundle> bundles = new LinkedHashMap<>();
+		for (File file : files) {
+			Bundle b = current.get(file);
+			if (b != null) {
+				bundles.put(file, b);
+			}
+		}
+		return bundles;
+	}
+
 	/**
 	 * Main runner. See class description.
 	 *
@@ -143,16 +599,74 @@ public class Runner {
 	 * @throws Exception In case of severe errors
 	 */
 	public static void main(String[] args) throws Exception {
+		Runner runner = launch(args);
+		if (runner == null) {
+			return;
+		}
+		if (runner.exit) {
+			runner.framework.stop();
+			runner.framework.waitForStop(0);
+			return;
+		}
+		runner.run();
+	}
+
+	/**
+	 * Run until the framework stops, handling bundle file changes when requested by -w or -e.
+	 *
+	 * @throws IOException In case the bundle directories cannot be watched
+	 */
+	void run() throws IOException {
+		DirectoryWatcher watcher = watch ? watch(bundles, directories) : null;
+		waitForTermination(bundles, watcher == null ? checkTime : 0L);
+		if (watcher != null) {
+			watcher.close();
+		}
+	}
+
+	/**
+	 * Get the framework launched by this runner.
+	 */
+	Framework getFramework() {
+		return framework;
+	}
+
+	/**
+	 * Get the installed bundles, mapped by their file.
+	 */
+	Map<File, Bundle> getBundles() {
+		return bundles;
+	}
+
+	/**
+	 * Launch the framework: install, resolve and start the bundles as described in the class description, without
+	 * waiting for the framework to stop.
+	 *
+	 * @param args The arguments passed
+	 * @return The runner of the launched framework, or null when no framework implementation is available
+	 * @throws Exception In case of severe errors
+	 */
+	static Runner launch(String[] args) throws Exception {
+		long begin = StartupProfile.now();
 		ServiceLoader<FrameworkFactory> sl =
 				ServiceLoader.load(FrameworkFactory.class);
 		if (!sl.iterator().hasNext()) {
-			return;
+			return null;
 		}
 		Map<String, String> props = new HashMap<>();
 		int cnt = 0;
-		List<File> files = new ArrayList<>();
 		int verbose = 0;
 		long checkTime = 0L;
+		int threads = 1;
+		File indexFile = null;
+		boolean reconcile = false;
+		boolean watch = false;
+		boolean followLinks = true;
+		boolean exit = false;
+		File reportFile = null;
+		long quiet = 1000L;
+		int startThreads = 1;
+		List<BundleDirectory> directories = new ArrayList<>();
 		while (cnt < args.length) {
 			// Options: -p means add properties from next argument
 			if ("-p".equals(args[cnt])) {
@@ -168,7 +682,7 @@ public class Runner {
 				if (args.length > cnt + 1 && !args[cnt + 1].startsWith("-")) {
 					match = args[++cnt];
 				}
-				parseFiles(new File(dir), files, match, recursive);
+				directories.add(new BundleDirectory(new File(dir), match, recursive));
 			}
 			else if ("-v".equals(args[cnt])) {
 				verbose++;
@@ -178,13 +692,49 @@ public class Runner {
 				checkTime = Long.parseLong(args[++cnt]) * 1000;
 				cnt++;
 			}
+			else if ("-i".equals(args[cnt])) {
+				indexFile = new File(args[++cnt]);
+				cnt++;
+			}
+			else if ("-c".equals(args[cnt])) {
+				reconcile = true;
+				cnt++;
+			}
+			else if ("-x".equals(args[cnt])) {
+				exit = true;
+				cnt++;
+			}
+			else if ("-l".equals(args[cnt])) {
+				followLinks = false;
+				cnt++;
+			}
+			else if ("-e".equals(args[cnt])) {
+				watch = true;
+				cnt++;
+			}
+			else if ("-q".equals(args[cnt])) {
+				quiet = Long.parseLong(args[++cnt]);
+				cnt++;
+			}
+			else if ("-t".equals(args[cnt])) {
+				reportFile = new File(args[++cnt]);
+				cnt++;
+			}
+			else if ("-s".equals(args[cnt])) {
+				startThreads = Integer.parseInt(args[++cnt]);
+				cnt++;
+			}
+			else if ("-j".equals(args[cnt])) {
+				threads = Integer.parseInt(args[++cnt]);
+				cnt++;
+			}
 			else {
 				cnt++;
 			}
 		}
 		// Post-process the bundle files. Remove any duplicate file names.
 		Map<String, File> unique = new LinkedHashMap<>();
-		for (File f : files) {
+		for (File f : new DirectoryScanner(followLinks).scan(directories)) {
 			unique.put(f.getName(), f);
 		}
 		FrameworkFactory factory = sl.iterator().next();
@@ -193,42 +743,49 @@ public class Runner {
 		framework.start();
 		BundleContext context = framework.getBundleContext();
 		// Install the bundles.
-		Map<File, Bundle> bundles = new LinkedHashMap<>();
-		for (File file : unique.values()) {
-			try {
-				Bundle b = context.installBundle("file:" + file.getAbsolutePath());
-				if (b.getSymbolicName() == null) {
-					if (verbose > 1) {
-						System.out.println(file + " is not a bundle. Removing bundle id: " + b.getBundleId());
-					}
-					b.uninstall();
-				}
-				else {
-					if (verbose > 1) {
-						System.out.println("File: " + file.getName() + ". Bundle: " + b.getSymbolicName() + ", version: " +
-								b.getVersion() + " installed. Bundle id: " + b.getBundleId());
-					}
-					bundles.put(file, b);
-				}
-			} catch (Exception exc) {
-				if (verbose > 0) {
-					System.out.println("File: " + file + " could not be installed. Reason: " + exc.getMessage());
-				}
-			}
+		ManifestIndex index = new ManifestIndex(indexFile);
+		StartupProfile profile = new StartupProfile(reportFile);
+		Map<File, Bundle> bundles;
+		Collection<Bundle> changed;
+		if (reconcile) {
+			changed = new ArrayList<>();
+			bundles = reconcile(context, unique.values(), index, profile, verbose, threads, changed);
+		}
+		else {
+			bundles = install(context, unique.values(), index, profile, verbose, threads);
+			changed = bundles.values();
 		}
+		saveIndex(index, verbose);
 		// Resolve them.
-		refresh(framework, bundles.values());
-		for (Bundle b : bundles.values()) {
-			if (b.getHeaders().get("Fragment-Host") == null) {
-				if (verbose > 2) {
-					System.out.println("Starting bundle: " + b);
-				}
-				b.start();
-				if (verbose > 0) {
-					System.out.println("Bundle: " + b.getBundleId() + " started");
-				}
+		if (!reconcile || !changed.isEmpty()) {
+			long start = StartupProfile.now();
+			refresh(framework, changed);
+			profile.record(StartupProfile.RESOLVE, changed.size() + " bundles", start);
+		}
+		Map<File, Bundle> toStart = new LinkedHashMap<>();
+		for (Map.Entry<File, Bundle> entry : bundles.entrySet()) {
+			if (!reconcile || entry.getValue().getState() != Bundle.ACTIVE) {
+				toStart.put(entry.getKey(), entry.getValue());
+			}
+		}
+		if (startThreads > 1) {
+			start(toStart, index, profile, verbose, startThreads);
+		}
+		else {
+			for (Map.Entry<File, Bundle> entry : toStart.entrySet()) {
+				start(entry.getKey(), entry.getValue(), index, profile, verbose);
 			}
 		}
-		new Runner(framework).waitForTermination(bundles, verbose, checkTime);
+		profile.record(StartupProfile.READY, "framework", begin);
+		profile.recordSinceJvmStart(StartupProfile.READY, "jvm");
+		writeProfile(profile, verbose);
+		Runner runner = new Runner(framework, index, profile, verbose, quiet);
+		runner.bundles = bundles;
+		runner.directories = directories;
+		runner.watch = watch;
+		runner.followLinks = followLinks;
+		runner.checkTime = checkTime;
+		runner.exit = exit;
+		return runner;
 	}
 }
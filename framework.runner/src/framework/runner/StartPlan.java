@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Plan for starting bundles in parallel. A bundle is started as soon as all bundles it is wired to (its providers)
+ * are started, so a slow bundle only holds back the bundles that depend on it. Bundles with a lower start level are
+ * always started before the bundles with a higher start level. The bundles must be resolved (refreshed) before the
+ * plan is made, since the wiring is used to determine the dependencies.
+ */
+class StartPlan {
+	private final List<Map<File, Bundle>> levels = new ArrayList<>();
+	private final Map<Bundle, Integer> providerCounts = new HashMap<>();
+	private final Map<Bundle, List<Bundle>> dependents = new HashMap<>();
+
+	/**
+	 * Starter of a single bundle.
+	 */
+	interface Starter {
+		/**
+		 * Start a bundle. Failures must be handled by the starter, the dependent bundles are started anyway.
+		 *
+		 * @param file The file of the bundle
+		 * @param bundle The bundle to start
+		 */
+		void start(File file, Bundle bundle);
+	}
+
+	/**
+	 * Create the plan.
+	 *
+	 * @param bundles The bundles to start, mapped by their file. Bundles that are ready to start at the same time
+	 * are started in the order of this map
+	 */
+	StartPlan(Map<File, Bundle> bundles) {
+		Map<Integer, Map<File, Bundle>> byLevel = new TreeMap<>();
+		for (Map.Entry<File, Bundle> entry : bundles.entrySet()) {
+			BundleStartLevel level = entry.getValue().adapt(BundleStartLevel.class);
+			Integer key = Integer.valueOf(level == null ? 1 : level.getStartLevel());
+			Map<File, Bundle> map = byLevel.get(key);
+			if (map == null) {
+				map = new LinkedHashMap<>();
+				byLevel.put(key, map);
+			}
+			map.put(entry.getKey(), entry.getValue());
+		}
+		for (Map<File, Bundle> level : byLevel.values()) {
+			plan(level);
+		}
+	}
+
+	/**
+	 * Get the providers of a bundle, limited to a set of candidates.
+	 */
+	private static Set<Bundle> providers(Bundle b, Set<Bundle> candidates) {
+		Set<Bundle> providers = new HashSet<>();
+		BundleWiring wiring = b.adapt(BundleWiring.class);
+		List<BundleWire> wires = wiring == null ? null : wiring.getRequiredWires(null);
+		if (wires == null) {
+			return providers;
+		}
+		for (BundleWire wire : wires) {
+			Bundle provider = wire.getProvider().getBundle();
+			if (provider != b && candidates.contains(provider)) {
+				providers.add(provider);
+			}
+		}
+		return providers;
+	}
+
+	/**
+	 * Plan a start level. The bundles are ordered such that every bundle comes after its providers. Only the
+	 * providers that come earlier in this order are waited for, which breaks cyclic dependencies.
+	 */
+	private void plan(Map<File, Bundle> bundles) {
+		Set<Bundle> remaining = new HashSet<>(bundles.values());
+		Map<Bundle, Set<Bundle>> providers = new HashMap<>();
+		for (Bundle b : remaining) {
+			providers.put(b, providers(b, remaining));
+		}
+		Map<File, Bundle> ordered = new LinkedHashMap<>();
+		Map<File, Bundle> pending = new LinkedHashMap<>(bundles);
+		while (!pending.isEmpty()) {
+			Map<File, Bundle> ready = new LinkedHashMap<>();
+			for (Map.Entry<File, Bundle> entry : pending.entrySet()) {
+				Set<Bundle> open = new HashSet<>(providers.get(entry.getValue()));
+				open.retainAll(remaining);
+				if (open.isEmpty()) {
+					ready.put(entry.getKey(), entry.getValue());
+				}
+			}
+			if (ready.isEmpty()) {
+				// Cyclic dependencies. Break the cycle by starting the first bundle in file order.
+				Map.Entry<File, Bundle> first = pending.entrySet().iterator().next();
+				ready.put(first.getKey(), first.getValue());
+			}
+			for (Map.Entry<File, Bundle> entry : ready.entrySet()) {
+				pending.remove(entry.getKey());
+				remaining.remove(entry.getValue());
+			}
+			ordered.putAll(ready);
+		}
+		Set<Bundle> earlier = new HashSet<>();
+		for (Bundle b : ordered.values()) {
+			int count = 0;
+			for (Bundle provider : providers.get(b)) {
+				if (earlier.contains(provider)) {
+					dependents.get(provider).add(b);
+					count++;
+				}
+			}
+			providerCounts.put(b, Integer.valueOf(count));
+			dependents.put(b, new ArrayList<Bundle>());
+			earlier.add(b);
+		}
+		levels.add(ordered);
+	}
+
+	/**
+	 * Start the bundles. Every bundle is handed to the executor as soon as all its providers are started, the next
+	 * start level is only started when all bundles of the previous level are started.
+	 *
+	 * @param executor The executor to start the bundles with
+	 * @param starter The starter of the individual bundles
+	 * @throws InterruptedException In case the start is interrupted
+	 */
+	void start(Executor executor, Starter starter) throws InterruptedException {
+		for (Map<File, Bundle> level : levels) {
+			Map<Bundle, File> files = new HashMap<>();
+			Map<Bundle, AtomicInteger> open = new HashMap<>();
+			for (Map.Entry<File, Bundle> entry : level.entrySet()) {
+				files.put(entry.getValue(), entry.getKey());
+				open.put(entry.getValue(), new AtomicInteger(providerCounts.get(entry.getValue()).intValue()));
+			}
+			CountDownLatch done = new CountDownLatch(level.size());
+			for (Bundle b : level.values()) {
+				if (open.get(b).get() == 0) {
+					submit(b, executor, starter, files, open, done);
+				}
+			}
+			done.await();
+		}
+	}
+
+	private void submit(final Bundle b, final Executor executor, final Starter starter, final Map<Bundle, File> files,
+			final Map<Bundle, AtomicInteger> open, final CountDownLatch done) {
+		executor.execute(new Runnable() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public void run() {
+				try {
+					starter.start(files.get(b), b);
+				} finally {
+					for (Bundle dependent : dependents.get(b)) {
+						if (open.get(dependent).decrementAndGet() == 0) {
+							submit(dependent, executor, starter, files, open, done);
+						}
+					}
+					done.countDown();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package framework.runner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timing profile of the runner. Records the duration of the install, resolve and start phases per bundle, the time
+ * until the framework is ready and the timings of the hot-deploy cycles. The profile is written as a report that is
+ * sorted by cost, in JSON format when the report file ends with .json and as CSV otherwise. When no report file is
+ * given, nothing is recorded.
+ */
+class StartupProfile {
+	static final String INSTALL = "install";
+	static final String RESOLVE = "resolve";
+	static final String START = "start";
+	static final String READY = "ready";
+	static final String UPDATE = "update";
+	static final String UNINSTALL = "uninstall";
+	static final String REFRESH = "refresh";
+	private final File report;
+	private final List<Timing> timings = new ArrayList<>();
+
+	private static class Timing {
+		final String phase;
+		final String name;
+		final long nanos;
+
+		Timing(String phase, String name, long nanos) {
+			this.phase = phase;
+			this.name = name;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Create the profile.
+	 *
+	 * @param report The report file. May be null, meaning that profiling is disabled
+	 */
+	StartupProfile(File report) {
+		this.report = report;
+	}
+
+	/**
+	 * Get the current time to use as start of a timing.
+	 */
+	static long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record a timing that started at a specific time and ends now.
+	 *
+	 * @param phase The phase, like {@link #INSTALL}
+	 * @param name The name of the timed item, like the bundle file
+	 * @param start The start time, as returned by {@link #now()}
+	 */
+	void record(String phase, Object name, long start) {
+		if (report == null) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		synchronized (timings) {
+			timings.add(new Timing(phase, String.valueOf(name), nanos));
+		}
+	}
+
+	/**
+	 * Record a timing that started when the JVM started and ends now, so it includes the JVM boot and the loading of
+	 * the runner itself. Has a millisecond resolution only.
+	 *
+	 * @param phase The phase, like {@link #READY}
+	 * @param name The name of the timed item
+	 */
+	void recordSinceJvmStart(String phase, Object name) {
+		if (report == null) {
+			return;
+		}
+		long millis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+		synchronized (timings) {
+			timings.add(new Timing(phase, String.valueOf(name), millis * 1000000L));
+		}
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", Double.valueOf(nanos / 1000000.0));
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static String csv(String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Write the report, overwriting any previous report. The timings are sorted by duration, most expensive first.
+	 *
+	 * @throws IOException In case the report cannot be written
+	 */
+	void write() throws IOException {
+		if (report == null) {
+			return;
+		}
+		List<Timing> sorted;
+		synchronized (timings) {
+			sorted = new ArrayList<>(timings);
+		}
+		Collections.sort(sorted, new Comparator<Timing>() {
+			@Override
+			public int compare(Timing t1, Timing t2) {
+				return Long.compare(t2.nanos, t1.nanos);
+			}
+		});
+		boolean json = report.getName().endsWith(".json");
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(report),
+				StandardCharsets.UTF_8))) {
+			if (json) {
+				out.println("[");
+			}
+			else {
+				out.println("phase,name,millis");
+			}
+			for (int i = 0; i < sorted.size(); i++) {
+				Timing t = sorted.get(i);
+				if (json) {
+					out.println("  {\"phase\": " + quote(t.phase) + ", \"name\": " + quote(t.name) + ", \"millis\": " +
+							millis(t.nanos) + (i < sorted.size() - 1 ? "}," : "}"));
+				}
+				else {
+					out.println(t.phase + "," + csv(t.name) + "," + millis(t.nanos));
+				}
+			}
+			if (json) {
+				out.println("]");
+			}
+		}
+	}
+}
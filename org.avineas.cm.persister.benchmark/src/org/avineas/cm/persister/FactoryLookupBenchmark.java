@@ -0,0 +1,89 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.cm.Configuration;
+
+/**
+ * Benchmark of the lookup of factory configurations by their local pid. The
+ * configuration admin is filled by synchronizing the generated file once.
+ * The lookup benchmark uses a built index, the build benchmark measures the
+ * query that builds the index for a configuration admin.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FactoryLookupBenchmark {
+    @Param({ "10" })
+    public int pids;
+    @Param({ "10" })
+    public int keys;
+    @Param({ "100", "1000" })
+    public int factories;
+    private File dir;
+    private FactoryIndex index;
+    private StubConfigurationAdmin admin;
+    private String[] localPids;
+    private int next;
+
+    @Setup
+    public void synchronize() throws Exception {
+        dir = Files.createTempDirectory("persister-bench").toFile();
+        File file = new File(dir, "bench.properties");
+        new PropertyFileGenerator(pids, keys, factories).write(file, 0);
+        index = new FactoryIndex();
+        admin = new StubConfigurationAdmin();
+        new PropertyFileHandler(file, false, index, new Snapshot(null), new Statistics()).checkConfiguration(admin);
+        localPids = new String[factories];
+        for (int i = 0; i < factories; i++) {
+            localPids[i] = PropertyFileGenerator.factory(i);
+        }
+    }
+
+    @TearDown
+    public void delete() {
+        PropertyFileGenerator.delete(dir);
+    }
+
+    @Benchmark
+    public Configuration lookup() throws Exception {
+        return index.find(admin, localPids[next++ % localPids.length]);
+    }
+
+    @Benchmark
+    public Configuration build() throws Exception {
+        return new FactoryIndex().find(admin, localPids[0]);
+    }
+}
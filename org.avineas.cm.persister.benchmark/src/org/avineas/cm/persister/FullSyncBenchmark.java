@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of a full synchronization: a new handler pushes all pids of the
+ * file to an empty configuration admin, like on the first start. Every
+ * invocation gets a new handler, configuration admin and snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FullSyncBenchmark {
+    @Param({ "100", "1000" })
+    public int pids;
+    @Param({ "10" })
+    public int keys;
+    @Param({ "0", "100" })
+    public int factories;
+    private File dir;
+    private File file;
+    private PropertyFileHandler handler;
+    private StubConfigurationAdmin admin;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        dir = Files.createTempDirectory("persister-bench").toFile();
+        file = new File(dir, "bench.properties");
+        new PropertyFileGenerator(pids, keys, factories).write(file, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        PropertyFileGenerator.delete(dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        handler = new PropertyFileHandler(file, false, new FactoryIndex(), new Snapshot(null), new Statistics());
+        admin = new StubConfigurationAdmin();
+    }
+
+    @Benchmark
+    public void sync() throws Exception {
+        handler.checkConfiguration(admin);
+    }
+}
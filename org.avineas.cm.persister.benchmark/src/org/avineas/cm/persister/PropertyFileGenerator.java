@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Generator of property files for the benchmarks. The file contains a number
+ * of pids with a number of keys each, followed by a number of factory
+ * entries with the same keys. Part of the keys is typed, so the typed values
+ * are parsed as well. Every entry ends with a revision key, only the one of
+ * the first pid changes with the revision, so a new revision is a change of a
+ * single line.
+ */
+class PropertyFileGenerator {
+    // The factory pid of the factory entries
+    static final String FACTORY = "bench.factory";
+    private final int pids;
+    private final int keys;
+    private final int factories;
+
+    PropertyFileGenerator(int pids, int keys, int factories) {
+        this.pids = pids;
+        this.keys = keys;
+        this.factories = factories;
+    }
+
+    /**
+     * Return the local pid of a factory entry.
+     */
+    static String factory(int i) {
+        return "bench.f" + i;
+    }
+
+    /**
+     * Write the property file.
+     *
+     * @param file The file to write
+     * @param revision The revision of the changing line
+     * @throws IOException In case the file cannot be written
+     */
+    void write(File file, int revision) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.ISO_8859_1)) {
+            out.write("# Generated configuration\n");
+            for (int i = 0; i < pids; i++) {
+                out.write("\n# pid " + i + "\n");
+                entry(out, "bench.p" + i, i == 0 ? revision : 0);
+            }
+            for (int i = 0; i < factories; i++) {
+                out.write("\n# factory entry " + i + "\n");
+                out.write(factory(i) + PropertyParser.SEP + "service.factoryPid=" + FACTORY + "\n");
+                entry(out, factory(i), 0);
+            }
+        }
+    }
+
+    private void entry(Writer out, String pid, int revision) throws IOException {
+        for (int k = 0; k < keys; k++) {
+            String key = pid + PropertyParser.SEP + "key" + k;
+            switch (k % 4) {
+            case 1:
+                out.write(key + PropertyParser.TYPE + "Integer=" + (1000 + k) + "\n");
+                break;
+            case 2:
+                out.write(key + PropertyParser.TYPE + "Boolean=" + (k % 8 == 2) + "\n");
+                break;
+            case 3:
+                out.write(key + PropertyParser.TYPE + "String[]=first" + k + ",second" + k + "\n");
+                break;
+            default:
+                out.write(key + " = value of " + pid + " key " + k + "\n");
+            }
+        }
+        out.write(pid + PropertyParser.SEP + "revision" + PropertyParser.TYPE + "Long=" + revision + "\n");
+    }
+
+    /**
+     * Delete a directory with its contents.
+     */
+    static void delete(File dir) {
+        File[] contents = dir.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                delete(f);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * In-memory configuration admin for the benchmarks. Keeps the configurations
+ * in a map and does not notify anyone of changes, so the benchmarks measure
+ * the persister and not a configuration admin implementation.
+ */
+class StubConfigurationAdmin implements ConfigurationAdmin {
+    private final Map<String, StubConfiguration> configurations = new ConcurrentHashMap<String, StubConfiguration>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public Configuration createFactoryConfiguration(String factoryPid) {
+        return createFactoryConfiguration(factoryPid, null);
+    }
+
+    @Override
+    public Configuration createFactoryConfiguration(String factoryPid, String location) {
+        StubConfiguration config = new StubConfiguration(factoryPid + "-" + sequence.incrementAndGet(), factoryPid);
+        configurations.put(config.pid, config);
+        return config;
+    }
+
+    @Override
+    public Configuration getConfiguration(String pid) {
+        return getConfiguration(pid, null);
+    }
+
+    @Override
+    public synchronized Configuration getConfiguration(String pid, String location) {
+        StubConfiguration config = configurations.get(pid);
+        if (config == null) {
+            config = new StubConfiguration(pid, null);
+            configurations.put(pid, config);
+        }
+        return config;
+    }
+
+    @Override
+    public Configuration[] listConfigurations(String filter) throws InvalidSyntaxException {
+        Filter f = filter == null ? null : FrameworkUtil.createFilter(filter);
+        List<Configuration> result = new ArrayList<Configuration>();
+        for (StubConfiguration config : configurations.values()) {
+            Dictionary<String, Object> props;
+            try {
+                props = config.getProperties();
+            } catch (IllegalStateException exc) {
+                // Deleted while listing.
+                continue;
+            }
+            if (props != null && (f == null || f.match(props)))
+                result.add(config);
+        }
+        return result.isEmpty() ? null : result.toArray(new Configuration[result.size()]);
+    }
+
+    private class StubConfiguration implements Configuration {
+        private final String pid;
+        private final String factoryPid;
+        private volatile Dictionary<String, Object> properties;
+        private volatile String location;
+        private volatile boolean deleted;
+
+        StubConfiguration(String pid, String factoryPid) {
+            this.pid = pid;
+            this.factoryPid = factoryPid;
+        }
+
+        @Override
+        public String getPid() {
+            return pid;
+        }
+
+        private void checkDeleted() {
+            if (deleted)
+                throw new IllegalStateException("Configuration " + pid + " is deleted");
+        }
+
+        @Override
+        public String getFactoryPid() {
+            checkDeleted();
+            return factoryPid;
+        }
+
+        @Override
+        public Dictionary<String, Object> getProperties() {
+            checkDeleted();
+            Dictionary<String, Object> props = properties;
+            if (props == null)
+                return null;
+            Dictionary<String, Object> copy = copy(props);
+            copy.put(Constants.SERVICE_PID, pid);
+            if (factoryPid != null)
+                copy.put(ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid);
+            return copy;
+        }
+
+        @Override
+        public void update(Dictionary<String, ?> props) {
+            checkDeleted();
+            properties = copy(props);
+        }
+
+        @Override
+        public void update() {
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void delete() {
+            checkDeleted();
+            configurations.remove(pid);
+            deleted = true;
+        }
+
+        @Override
+        public void setBundleLocation(String location) {
+            this.location = location;
+        }
+
+        @Override
+        public String getBundleLocation() {
+            return location;
+        }
+    }
+
+    private static Dictionary<String, Object> copy(Dictionary<String, ?> dict) {
+        Dictionary<String, Object> copy = new Hashtable<String, Object>();
+        for (Enumeration<String> keys = dict.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            copy.put(key, dict.get(key));
+        }
+        return copy;
+    }
+}
@@ -17,29 +17,66 @@
 package org.avineas.cm.persister;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.ObjectName;
+
+import org.avineas.cm.persister.metrics.PersisterMetrics;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationListener;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 /**
  * Activator for this bundle. Takes care of creating a new file handlers and
- * handling the properties related to it.
+ * handling the properties related to it. The files are read from the file or
+ * directory given by the framework property "cm.location". When the property
+ * "cm.delete" is true, configurations of pids that are removed from a file are
+ * deleted as well, also when the pid or the file was removed while the bundle
+ * was stopped. The location is watched for created, modified and deleted
+ * files. Only when that is not possible, the files are polled every 10 seconds.
+ * Changes made through the configuration admin to configurations read from a
+ * file are written back to that file, unless "cm.writeback" is false.
+ * The files are synchronized in parallel on "cm.threads" threads, by default
+ * the number of processors. A file that takes longer than "cm.timeout"
+ * milliseconds, 30 seconds by default, is interrupted. A snapshot of the
+ * parsed files is kept in the data area of the bundle, so unchanged files are
+ * not parsed again after a restart. Values the configuration admin already
+ * has are not pushed again. Metrics are available as a {@link PersisterMetrics}
+ * service and as the MBean "org.avineas.cm.persister:type=Metrics".
  *
  * @author Arie van Wijngaarden
  */
 public class Activator implements BundleActivator {
     private static final String LOCPROPERTY = "cm.location";
+    // Indication whether configurations removed from the files must be deleted
+    private static final String DELETEPROPERTY = "cm.delete";
+    private static final String WRITEBACKPROPERTY = "cm.writeback";
+    private static final String THREADSPROPERTY = "cm.threads";
+    private static final String TIMEOUTPROPERTY = "cm.timeout";
+    private static final long DEFAULTTIMEOUT = 30000L;
+    // File in the data area with the snapshot of the parsed files
+    private static final String SNAPSHOTFILE = "snapshot";
+    private static final String MBEANNAME = "org.avineas.cm.persister:type=Metrics";
     private Timer timer;
+    private LocationWatcher watcher;
+    private ServiceRegistration<?> registration;
     private ServiceTracker<Object, Object> tracker;
+    private SynchronizerPool pool;
+    private ConfigurationWriter writer;
+    private Snapshot snapshot;
+    private ServiceRegistration<?> metrics;
+    private boolean mbean;
 
     @Override
     public void start(final BundleContext context) {
@@ -47,11 +84,40 @@ public class Activator implements BundleActivator {
         if (dir == null) {
             return;
         }
-        Map<String, PropertyFileHandler> persisters = new HashMap<String, PropertyFileHandler>();
+        final boolean delete = Boolean.parseBoolean(context.getProperty(DELETEPROPERTY));
+        String threads = context.getProperty(THREADSPROPERTY);
+        String timeout = context.getProperty(TIMEOUTPROPERTY);
+        final Statistics statistics = new Statistics();
+        metrics = context.registerService(PersisterMetrics.class.getName(), statistics, null);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, new ObjectName(MBEANNAME));
+            mbean = true;
+        } catch (Exception exc) {
+            // Already registered, like by another framework in this VM.
+        }
+        pool = new SynchronizerPool(
+                threads == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads),
+                timeout == null ? DEFAULTTIMEOUT : Long.parseLong(timeout), statistics);
+        final FactoryIndex index = new FactoryIndex();
+        snapshot = new Snapshot(context.getDataFile(SNAPSHOTFILE));
+        LocationWatcher.Factory factory = new LocationWatcher.Factory() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public PropertyFileHandler create(File f) {
+                return new PropertyFileHandler(f, delete, index, snapshot, statistics);
+            }
+        };
+        Map<String, PropertyFileHandler> persisters = new ConcurrentHashMap<String, PropertyFileHandler>();
+        ConfigurationListener listener = index;
+        if (!"false".equals(context.getProperty(WRITEBACKPROPERTY))) {
+            writer = new ConfigurationWriter(index, persisters.values(), statistics);
+            listener = writer;
+        }
+        registration = context.registerService(ConfigurationListener.class.getName(), listener, null);
         File file = new File(dir);
         if (!file.isDirectory()) {
             if (PropertyFileHandler.filter().accept(file)) {
-                persisters.put(file.toString(), new PropertyFileHandler(file));
+                persisters.put(file.toString(), factory.create(file));
             }
         } else {
             for (File entry : file.listFiles()) {
@@ -59,12 +125,19 @@ public class Activator implements BundleActivator {
                     continue;
                 }
                 if (PropertyFileHandler.filter().accept(entry)) {
-                    persisters.put(entry.toString(), new PropertyFileHandler(
-                            entry));
+                    persisters.put(entry.toString(), factory.create(entry));
                 }
             }
         }
-        // We got them all.
+        // Files removed while the bundle was stopped are handled as empty files,
+        // so the configurations of their pids are deleted as well.
+        for (File known : snapshot.files()) {
+            File gone = file.isDirectory() ? new File(file, known.getName()) : file;
+            if (!gone.exists() && gone.getAbsoluteFile().equals(known)) {
+                persisters.put(gone.toString(), factory.create(gone));
+            }
+        }
+        // We got them all. The values are a live view, so handlers added by the watcher are included.
         final Collection<? extends ConfigurationSynchronizer> backers = persisters
                 .values();
         // Do the tracking.
@@ -74,7 +147,7 @@ public class Activator implements BundleActivator {
                 public void removedService(ServiceReference<Object> ref,
                         Object admin) {
                     context.ungetService(ref);
-                    update(null, backers);
+                    pool.submit(null, backers);
                 }
 
                 @Override
@@ -85,39 +158,66 @@ public class Activator implements BundleActivator {
                 @Override
                 public Object addingService(ServiceReference<Object> ref) {
                     Object obj = context.getService(ref);
-                    update((ConfigurationAdmin) obj, backers);
+                    pool.submit((ConfigurationAdmin) obj, backers);
                     return obj;
                 }
             });
         tracker.open();
+        // Watch the location for changes. Only poll when that is not possible.
+        try {
+            watcher = new LocationWatcher(file, persisters, factory, tracker, pool);
+            Thread thread = new Thread(watcher, "Configuration location watcher");
+            thread.setDaemon(true);
+            thread.start();
+            return;
+        } catch (IOException exc) {
+            watcher = null;
+        }
         // Set the timer.
         timer = new Timer();
         timer.schedule(new TimerTask() {
             @SuppressWarnings("synthetic-access")
             @Override
             public void run() {
-                update((ConfigurationAdmin) tracker.getService(), backers);
+                pool.submit((ConfigurationAdmin) tracker.getService(), backers);
             }
         }, 10000L, 10000L);
     }
 
-    static void update(ConfigurationAdmin admin,
-            Collection<? extends ConfigurationSynchronizer> backers) {
-        try {
-            for (ConfigurationSynchronizer s : backers) {
-                s.checkConfiguration(admin);
-            }
-        } catch (Exception exc) {
-        }
-    }
-
     @Override
     public void stop(BundleContext context) {
+        if (watcher != null) {
+            watcher.close();
+        }
         if (timer != null) {
             timer.cancel();
         }
+        if (writer != null) {
+            writer.close();
+        }
         if (tracker != null) {
             tracker.close();
         }
+        if (registration != null) {
+            registration.unregister();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        if (mbean) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEANNAME));
+            } catch (Exception exc) {
+            }
+        }
+        if (snapshot != null) {
+            try {
+                snapshot.save();
+            } catch (IOException exc) {
+            }
+        }
     }
 }
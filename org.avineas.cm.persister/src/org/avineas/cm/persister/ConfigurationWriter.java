@@ -0,0 +1,124 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+/**
+ * Writer of configuration changes back to the property files. Listens to
+ * configuration events and registers the changes of configurations read from
+ * a file with the handler of that file. The handlers with changes are written
+ * after a short delay, so a burst of changes results in a single write per
+ * file. The events are passed on to the factory index as well, after the
+ * local pid of a factory configuration is looked up.
+ */
+class ConfigurationWriter implements ConfigurationListener {
+    // Time to wait for more changes before the files are written
+    private static final long DELAY = 500L;
+    private final FactoryIndex index;
+    private final Collection<PropertyFileHandler> handlers;
+    private final Statistics statistics;
+    private final ScheduledExecutorService executor = Executors
+            .newSingleThreadScheduledExecutor(SynchronizerPool.factory("Configuration writer"));
+    // The handlers with changes and whether a write is scheduled
+    private final Set<PropertyFileHandler> dirty = new HashSet<PropertyFileHandler>();
+    private boolean scheduled;
+
+    /**
+     * Create the writer.
+     *
+     * @param index The factory configuration index
+     * @param handlers The handlers of the files. Must be thread-safe
+     * @param statistics The metrics to count errors in
+     */
+    ConfigurationWriter(FactoryIndex index, Collection<PropertyFileHandler> handlers,
+            Statistics statistics) {
+        this.index = index;
+        this.handlers = handlers;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void configurationEvent(ConfigurationEvent event) {
+        String pid = event.getPid();
+        // Look up before the index forgets a deleted configuration.
+        String localPid = event.getFactoryPid() == null ? pid : index.localPid(pid);
+        index.configurationEvent(event);
+        boolean deleted = event.getType() == ConfigurationEvent.CM_DELETED;
+        if (localPid == null || (!deleted && event.getType() != ConfigurationEvent.CM_UPDATED))
+            return;
+        for (PropertyFileHandler handler : handlers) {
+            if (handler.owns(localPid)) {
+                handler.changed(localPid, pid, deleted);
+                schedule(handler);
+            }
+        }
+    }
+
+    private synchronized void schedule(PropertyFileHandler handler) {
+        dirty.add(handler);
+        if (scheduled)
+            return;
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, DELAY, TimeUnit.MILLISECONDS);
+            scheduled = true;
+        } catch (RejectedExecutionException exc) {
+        }
+    }
+
+    /**
+     * Write the changes of all handlers with changes.
+     */
+    void flush() {
+        List<PropertyFileHandler> flushed;
+        synchronized (this) {
+            flushed = new ArrayList<PropertyFileHandler>(dirty);
+            dirty.clear();
+            scheduled = false;
+        }
+        for (PropertyFileHandler handler : flushed) {
+            try {
+                handler.writeBack();
+            } catch (Exception exc) {
+                statistics.error();
+            }
+        }
+    }
+
+    /**
+     * Close the writer. Pending changes are written first.
+     */
+    void close() {
+        executor.shutdownNow();
+        flush();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+/**
+ * Index of the factory configurations created by the persister. Maps the
+ * local pid, as used in the property files, to the configuration. The index
+ * is built with a single query on the configuration admin and is kept
+ * up-to-date by listening to configuration events, so looking up a factory
+ * configuration does not need a filter query per entry or per event.
+ */
+class FactoryIndex implements ConfigurationListener {
+    private ConfigurationAdmin admin;
+    // Local pid to configuration and configuration pid to local pid
+    private final Map<String, Configuration> configs = new ConcurrentHashMap<String, Configuration>();
+    private final Map<String, String> locals = new ConcurrentHashMap<String, String>();
+
+    /**
+     * (Re)build the index for a configuration admin.
+     */
+    private void build(ConfigurationAdmin adm) throws IOException {
+        configs.clear();
+        locals.clear();
+        admin = adm;
+        Configuration[] existing;
+        try {
+            existing = adm.listConfigurations("("
+                    + PropertyFileHandler.PERSISTENCEPID + "=*)");
+        } catch (Exception exc) {
+            throw new IOException(exc);
+        }
+        if (existing == null)
+            return;
+        for (Configuration config : existing) {
+            add(config);
+        }
+    }
+
+    private void add(Configuration config) {
+        Dictionary<String, Object> props;
+        try {
+            props = config.getProperties();
+        } catch (IllegalStateException exc) {
+            // Deleted, the delete event follows.
+            return;
+        }
+        Object localPid = props == null ? null : props.get(PropertyFileHandler.PERSISTENCEPID);
+        if (localPid != null) {
+            register(localPid.toString(), config);
+        }
+    }
+
+    private void remove(String pid) {
+        String localPid = locals.remove(pid);
+        if (localPid != null) {
+            Configuration config = configs.get(localPid);
+            if (config != null && config.getPid().equals(pid))
+                configs.remove(localPid);
+        }
+    }
+
+    /**
+     * Find the factory configuration of a local pid.
+     *
+     * @param adm The configuration admin
+     * @param localPid The local pid
+     * @return The configuration, or null if there is none
+     * @throws IOException In case the configuration admin cannot be queried
+     */
+    synchronized Configuration find(ConfigurationAdmin adm, String localPid) throws IOException {
+        if (adm != admin) {
+            build(adm);
+        }
+        Configuration config = configs.get(localPid);
+        if (config == null)
+            return null;
+        try {
+            config.getFactoryPid();
+        } catch (IllegalStateException exc) {
+            // Deleted in the mean time and the event was not received yet.
+            remove(config.getPid());
+            return null;
+        }
+        return config;
+    }
+
+    /**
+     * Return an existing configuration. Unlike
+     * {@link ConfigurationAdmin#getConfiguration(String, String)}, a
+     * configuration that does not exist is not created.
+     *
+     * @param adm The configuration admin
+     * @param pid The pid of the configuration
+     * @return The configuration, or null if it does not exist or has no
+     * properties yet
+     * @throws IOException In case the configuration admin cannot be queried
+     */
+    static Configuration lookup(ConfigurationAdmin adm, String pid) throws IOException {
+        StringBuilder filter = new StringBuilder("(" + Constants.SERVICE_PID + "=");
+        for (char c : pid.toCharArray()) {
+            if (c == '\\' || c == '(' || c == ')' || c == '*')
+                filter.append('\\');
+            filter.append(c);
+        }
+        Configuration[] existing;
+        try {
+            existing = adm.listConfigurations(filter.append(')').toString());
+        } catch (InvalidSyntaxException exc) {
+            throw new IOException(exc);
+        }
+        return existing == null || existing.length == 0 ? null : existing[0];
+    }
+
+    /**
+     * Register a newly created factory configuration.
+     */
+    void register(String localPid, Configuration config) {
+        Configuration previous = configs.put(localPid, config);
+        if (previous != null && !previous.getPid().equals(config.getPid()))
+            locals.remove(previous.getPid());
+        locals.put(config.getPid(), localPid);
+    }
+
+    /**
+     * Return the local pid of a factory configuration.
+     *
+     * @param pid The pid of the configuration
+     * @return The local pid, or null if the configuration is not known
+     */
+    String localPid(String pid) {
+        return locals.get(pid);
+    }
+
+    @Override
+    public void configurationEvent(ConfigurationEvent event) {
+        if (event.getFactoryPid() == null)
+            return;
+        String pid = event.getPid();
+        if (event.getType() == ConfigurationEvent.CM_DELETED) {
+            remove(pid);
+        } else if (event.getType() == ConfigurationEvent.CM_UPDATED) {
+            // Configurations with a local pid are created by the persister and
+            // registered right away, so only a changed local pid is of interest.
+            String localPid = locals.get(pid);
+            Configuration config = localPid == null ? null : configs.get(localPid);
+            if (config == null || !config.getPid().equals(pid))
+                return;
+            Dictionary<String, Object> props;
+            try {
+                props = config.getProperties();
+            } catch (IllegalStateException exc) {
+                // Deleted, the delete event follows.
+                return;
+            }
+            Object current = props == null ? null : props.get(PropertyFileHandler.PERSISTENCEPID);
+            if (!localPid.equals(current)) {
+                remove(pid);
+                if (current != null)
+                    register(current.toString(), config);
+            }
+        }
+    }
+}
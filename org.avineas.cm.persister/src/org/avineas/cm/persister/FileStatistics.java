@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.avineas.cm.persister.metrics.FileMetrics;
+
+/**
+ * Implementation of the metrics of a single file. The counters that have a
+ * total are added to the totals as well.
+ */
+class FileStatistics implements FileMetrics {
+    private final Statistics totals;
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong parseTime = new AtomicLong();
+    private final AtomicLong pushed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+    private volatile long lastLag;
+    private volatile String lastError;
+
+    FileStatistics(Statistics totals) {
+        this.totals = totals;
+    }
+
+    void sync() {
+        syncs.incrementAndGet();
+        totals.syncs.incrementAndGet();
+    }
+
+    /**
+     * Record a parse of the file.
+     *
+     * @param nanos The time the parse took
+     */
+    void parsed(long nanos) {
+        parses.incrementAndGet();
+        parseTime.addAndGet(nanos / 1000L);
+    }
+
+    void pushed() {
+        pushed.incrementAndGet();
+        totals.pushed.incrementAndGet();
+    }
+
+    void skipped() {
+        skipped.incrementAndGet();
+        totals.skipped.incrementAndGet();
+    }
+
+    void error(Exception exc) {
+        errors.incrementAndGet();
+        lastError = exc.toString();
+    }
+
+    /**
+     * Record an error in the file, the erroneous property was skipped.
+     */
+    void parseError(int line, String message) {
+        parseErrors.incrementAndGet();
+        lastError = "line " + line + ": " + message;
+    }
+
+    /**
+     * Record the time between the modification of the file and the push of
+     * its changes.
+     */
+    void lag(long lag) {
+        lastLag = lag;
+        for (long max = maxLag.get(); lag > max && !maxLag.compareAndSet(max, lag); max = maxLag.get()) {
+        }
+    }
+
+    @Override
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    @Override
+    public long getParses() {
+        return parses.get();
+    }
+
+    @Override
+    public long getParseTime() {
+        return parseTime.get();
+    }
+
+    @Override
+    public long getPushed() {
+        return pushed.get();
+    }
+
+    @Override
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getParseErrors() {
+        return parseErrors.get();
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public long getLastLag() {
+        return lastLag;
+    }
+
+    @Override
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+}
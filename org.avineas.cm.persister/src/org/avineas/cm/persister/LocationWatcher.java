@@ -0,0 +1,172 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Watcher of the configuration location. Uses a {@link WatchService} to get
+ * notified of created, modified and deleted property files. New files get a
+ * handler, handlers of deleted files are removed and only the handlers of
+ * the changed files are synchronized.
+ */
+class LocationWatcher implements Runnable {
+    // Time to wait for more events before the changed files are synchronized
+    private static final long SETTLE = 200L;
+    private final WatchService service;
+    private final Path dir;
+    // The watched file if the location is a single file
+    private final File only;
+    private final Map<String, PropertyFileHandler> persisters;
+    private final Factory factory;
+    private final ServiceTracker<Object, Object> tracker;
+    private final SynchronizerPool pool;
+
+    /**
+     * Creator of the handlers of new files.
+     */
+    interface Factory {
+        PropertyFileHandler create(File file);
+    }
+
+    /**
+     * Create the watcher.
+     *
+     * @param location The configuration location. Either a directory or a
+     * single property file
+     * @param persisters The handlers, mapped by their file name. Is updated
+     * when files appear or disappear and must therefore be thread-safe
+     * @param factory The creator of handlers for new files
+     * @param tracker The tracker of the configuration admin
+     * @param pool The pool to synchronize the changed files on
+     * @throws IOException In case the location cannot be watched
+     */
+    LocationWatcher(File location, Map<String, PropertyFileHandler> persisters,
+            Factory factory, ServiceTracker<Object, Object> tracker, SynchronizerPool pool)
+            throws IOException {
+        File directory = location.isDirectory() ? location : location.getAbsoluteFile().getParentFile();
+        this.only = location.isDirectory() ? null : location;
+        this.dir = directory.toPath();
+        this.persisters = persisters;
+        this.factory = factory;
+        this.tracker = tracker;
+        this.pool = pool;
+        this.service = FileSystems.getDefault().newWatchService();
+        dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    }
+
+    /**
+     * Close the watcher. Causes the {@link #run()} method to terminate.
+     */
+    void close() {
+        try {
+            service.close();
+        } catch (IOException exc) {
+        }
+    }
+
+    /**
+     * Collect the changed files of a watch key. On an overflow all files in
+     * the directory and all known files are treated as changed.
+     */
+    private void collect(WatchKey key, Set<File> changed) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                File[] files = dir.toFile().listFiles();
+                if (only != null) {
+                    changed.add(only);
+                } else if (files != null) {
+                    Collections.addAll(changed, files);
+                }
+                for (String name : persisters.keySet()) {
+                    changed.add(new File(name));
+                }
+                continue;
+            }
+            File file = dir.resolve((Path) event.context()).toFile();
+            if (only == null) {
+                changed.add(file);
+            } else if (only.getName().equals(file.getName())) {
+                changed.add(only);
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Synchronize a changed file. A handler is created for new files and
+     * removed for deleted files.
+     */
+    private void synchronize(File file) {
+        String name = file.toString();
+        PropertyFileHandler handler = persisters.get(name);
+        if (handler == null) {
+            if (!file.isFile() || !PropertyFileHandler.filter().accept(file))
+                return;
+            handler = factory.create(file);
+            persisters.put(name, handler);
+        }
+        pool.submit((ConfigurationAdmin) tracker.getService(),
+                Collections.singleton(handler));
+        if (!file.exists()) {
+            persisters.remove(name);
+        }
+    }
+
+    /**
+     * Watch the location until the watcher is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                Set<File> changed = new HashSet<File>();
+                WatchKey key = service.take();
+                while (key != null) {
+                    collect(key, changed);
+                    // Wait a bit for more events, editors tend to write a file in steps.
+                    key = service.poll(SETTLE, TimeUnit.MILLISECONDS);
+                }
+                for (File file : changed) {
+                    synchronize(file);
+                }
+            }
+        } catch (ClosedWatchServiceException exc) {
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
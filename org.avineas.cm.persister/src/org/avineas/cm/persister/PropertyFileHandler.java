@@ -15,35 +15,90 @@
  */
 package org.avineas.cm.persister;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.osgi.framework.Constants;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
 
 /**
  * Handler of a property file. Is able to read a property file containing
- * persisted configuration admin data.
+ * persisted configuration admin data and to write changes made through the
+ * configuration admin back to it.
  */
 public class PropertyFileHandler implements ConfigurationSynchronizer {
-    private static final String PERSISTENCEPID = "$$key$$";
-    // The PID-property separator
-    private static final String SEP = "..";
+    static final String PERSISTENCEPID = "$$key$$";
     // Extension of files in the directory
     private static final String EXTENSION = ".properties";
+    // The encoding of property files, as used by Properties.load(InputStream)
+    private static final Charset ENCODING = StandardCharsets.ISO_8859_1;
+    // The coarsest granularity of file modification times, like on FAT
+    private static final long GRANULARITY = 2000L;
     private File file;
     private ConfigurationAdmin admin;
-    private long lastRead;
+    private boolean delete;
+    private FactoryIndex index;
+    private PropertyParser parser;
+    private Snapshot snapshot;
+    private FileStatistics statistics;
+    // The hash of the contents last read, null if the file did not exist
+    private String hash;
+    // The size and modification time of the file when it was last read, and the
+    // time they were taken
+    private long size;
+    private long modified;
+    private long checked;
+    // The dictionaries last pushed to the configuration admin, per pid
+    private Map<String, Dictionary<String, Object>> pushed = new ConcurrentHashMap<String, Dictionary<String, Object>>();
+    // The configurations of the pushed pids, so changes are read back without a query
+    private Map<String, Configuration> configs = new ConcurrentHashMap<String, Configuration>();
+    // Changes made through the configuration admin that are not written yet,
+    // local pid to configuration pid. An empty pid marks a deleted configuration.
+    private Map<String, String> changes = new ConcurrentHashMap<String, String>();
 
-    PropertyFileHandler(File file) {
+    /**
+     * Create a handler.
+     *
+     * @param file The property file
+     * @param delete Indication whether configurations of pids that are removed from
+     * the file must be deleted from the configuration admin
+     * @param index The index used to locate factory configurations
+     * @param snapshot The snapshot of the parsed files
+     * @param statistics The metrics, which also receive the errors in the file
+     */
+    PropertyFileHandler(File file, boolean delete, FactoryIndex index, Snapshot snapshot,
+            Statistics statistics) {
         this.file = file;
+        this.delete = delete;
+        this.index = index;
+        this.snapshot = snapshot;
+        this.parser = new PropertyParser(getBasePid(), statistics);
+        this.statistics = statistics.file(file);
     }
 
     /**
@@ -79,102 +134,466 @@ public class PropertyFileHandler implements ConfigurationSynchronizer {
     /**
      * Load the properties from the backing store. This means that the file is
      * processed and the information is loaded into a map with dictionaries.
+     * When the contents of the file match the snapshot, the dictionaries of
+     * the snapshot are used instead of parsing the file. Sets the hash, size
+     * and modification time of the contents that are read.
      * 
+     * @param current The hash of the current contents, null if not known
      * @return A map with dictionaries. Every entry is a pid with its associated
      * dictionary
+     * @throws IOException In case the file cannot be read
      */
-    private synchronized Map<String, Dictionary<String, Object>> loadProperties() {
+    private synchronized Map<String, Dictionary<String, Object>> loadProperties(String current)
+            throws IOException {
         Map<String, Dictionary<String, Object>> map = new HashMap<String, Dictionary<String, Object>>();
-        if (!file.exists())
+        if (!file.exists()) {
+            hash = null;
             return map;
-        Properties props = new Properties();
-        FileInputStream in = null;
-        try {
-            in = new FileInputStream(file);
-            props.load(in);
-            for (Map.Entry<Object, Object> entry : props.entrySet()) {
-                // Assume that when the property is
-                // hallo.boppers.this.is..me = testje
-                // then the pid is "hallo.boppers.this.is" and the
-                // entry for the dictionary is "me" -> "testje".
-                String key = entry.getKey().toString();
-                String value = entry.getValue().toString();
-                // Check if the pid is in the property or
-                // whether the base name must be used.
-                int index = key.lastIndexOf(SEP);
-                String pid;
-                String prop;
-                if (index <= 0) {
-                    pid = getBasePid();
-                    prop = key;
-                } else {
-                    pid = key.substring(0, index);
-                    prop = key.substring(index + SEP.length());
-                }
-                if (prop.length() == 0)
-                    continue;
-                Dictionary<String, Object> dict = map.get(pid);
-                if (dict == null) {
-                    dict = new Hashtable<String, Object>();
-                    map.put(pid, dict);
-                }
-                String[] values = value.split(",");
-                if (values.length > 1) {
-                    dict.put(prop, values);
-                } else {
-                    dict.put(prop, value);
-                }
+        }
+        // Taken before reading, so a change during the read is seen by the next check.
+        checked = System.currentTimeMillis();
+        size = file.length();
+        modified = file.lastModified();
+        Snapshot.Entry entry = snapshot.get(file);
+        if (entry != null && entry.hash.equals(current == null ? Snapshot.hash(file) : current)) {
+            hash = entry.hash;
+            // Copies, the dictionaries are changed when pushed.
+            for (Map.Entry<String, Dictionary<String, Object>> pid : entry.properties.entrySet()) {
+                map.put(pid.getKey(), copy(pid.getValue()));
             }
-        } catch (Exception exc) {
-        } finally {
-            if (in != null)
-                try {
-                    in.close();
-                } catch (Exception exc) {
-                }
+            return map;
         }
+        MessageDigest digest = Snapshot.digest();
+        long start = System.nanoTime();
+        map = parser.parse(file, digest);
+        statistics.parsed(System.nanoTime() - start);
+        hash = Snapshot.hash(digest);
         return map;
     }
 
-    private synchronized void update(ConfigurationAdmin adm) throws IOException {
+    /**
+     * Compare two property values. Arrays are compared by their contents.
+     */
+    private static boolean equal(Object v1, Object v2) {
+        return Arrays.deepEquals(new Object[] { v1 }, new Object[] { v2 });
+    }
+
+    /**
+     * Compare two dictionaries, including the contents of array values.
+     */
+    static boolean equal(Dictionary<String, Object> d1, Dictionary<String, Object> d2) {
+        if (d1 == null || d2 == null || d1.size() != d2.size())
+            return false;
+        for (Enumeration<String> keys = d1.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            if (!equal(d1.get(key), d2.get(key)))
+                return false;
+        }
+        return true;
+    }
+
+    private static Dictionary<String, Object> copy(Dictionary<String, Object> dict) {
+        Dictionary<String, Object> copy = new Hashtable<String, Object>();
+        for (Enumeration<String> keys = dict.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            copy.put(key, dict.get(key));
+        }
+        return copy;
+    }
+
+    /**
+     * Delete the configuration of a pid that was removed from the file.
+     */
+    private void delete(ConfigurationAdmin adm, String localPid,
+            Dictionary<String, Object> values) throws IOException {
+        Configuration config;
+        if (values.get(ConfigurationAdmin.SERVICE_FACTORYPID) != null) {
+            config = index.find(adm, localPid);
+        } else {
+            config = FactoryIndex.lookup(adm, localPid);
+        }
+        if (config != null)
+            config.delete();
+    }
+
+    /**
+     * Update the configuration admin with the contents of the file. Only pids
+     * that are new or whose values changed since they were last pushed are
+     * updated, so unchanged configurations do not cause callbacks to their
+     * managed services.
+     *
+     * @return The number of pids pushed
+     */
+    private synchronized int update(ConfigurationAdmin adm, String current) throws IOException {
         if (adm == null)
-            return;
+            return 0;
+        // The first update for this configuration admin, the pushed values are
+        // the ones of the snapshot.
+        boolean first = admin != adm;
+        int count = 0;
         // Load the properties.
-        Map<String, Dictionary<String, Object>> properties = loadProperties();
+        Map<String, Dictionary<String, Object>> properties = loadProperties(current);
         for (Map.Entry<String, Dictionary<String, Object>> entry : properties
                 .entrySet()) {
             Dictionary<String, Object> values = entry.getValue();
+            String localPid = entry.getKey();
+            if (!first && equal(values, pushed.get(localPid))) {
+                statistics.skipped();
+                continue;
+            }
+            Dictionary<String, Object> copy = copy(values);
             Configuration config;
             String factory = (String) values
                     .get(ConfigurationAdmin.SERVICE_FACTORYPID);
-            String localPid = entry.getKey();
             if (factory != null) {
                 // Locate the existing pid, if any.
-                try {
-                    Configuration[] existing = adm.listConfigurations("("
-                            + PERSISTENCEPID + "=" + localPid + ")");
-                    if (existing != null && existing.length > 0) {
-                        config = existing[0];
-                    } else {
-                        config = adm.createFactoryConfiguration(factory, null);
-                    }
-                } catch (Exception exc) {
-                    throw new IOException(exc);
+                config = index.find(adm, localPid);
+                if (config == null) {
+                    config = adm.createFactoryConfiguration(factory, null);
+                    index.register(localPid, config);
                 }
-                entry.getValue().put(PERSISTENCEPID, localPid);
+                values.put(PERSISTENCEPID, localPid);
             } else {
                 config = adm.getConfiguration(localPid, null);
             }
-            config.update(entry.getValue());
+            configs.put(localPid, config);
+            // Do not push values the configuration admin already has, like after a restart.
+            Dictionary<String, Object> existing = first || !pushed.containsKey(localPid) ? config.getProperties() : null;
+            if (existing == null || !equal(persisted(existing), copy)) {
+                config.update(values);
+                statistics.pushed();
+                count++;
+            } else {
+                statistics.skipped();
+            }
+            pushed.put(localPid, copy);
+        }
+        for (Iterator<Map.Entry<String, Dictionary<String, Object>>> it = pushed
+                .entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Dictionary<String, Object>> entry = it.next();
+            if (properties.containsKey(entry.getKey()))
+                continue;
+            if (delete)
+                delete(adm, entry.getKey(), entry.getValue());
+            it.remove();
+            configs.remove(entry.getKey());
+        }
+        if (hash == null) {
+            snapshot.remove(file);
+        } else {
+            snapshot.put(file, hash, new HashMap<String, Dictionary<String, Object>>(pushed));
         }
+        return count;
     }
 
-    @Override
-    public void checkConfiguration(ConfigurationAdmin adm) throws IOException {
-        if (this.admin == adm && lastRead >= file.lastModified())
+    /**
+     * Indicate whether a local pid was read from this file.
+     */
+    boolean owns(String localPid) {
+        return pushed.containsKey(localPid);
+    }
+
+    /**
+     * Register a change of a configuration made through the configuration
+     * admin. The change is written by the next {@link #writeBack()}.
+     *
+     * @param localPid The local pid of the configuration
+     * @param pid The pid of the configuration
+     * @param deleted Indication whether the configuration was deleted
+     */
+    void changed(String localPid, String pid, boolean deleted) {
+        changes.put(localPid, deleted ? "" : pid);
+    }
+
+    /**
+     * Convert the properties of a configuration to the dictionary as it is
+     * read from the file.
+     */
+    private static Dictionary<String, Object> persisted(Dictionary<String, Object> props) {
+        Dictionary<String, Object> dict = new Hashtable<String, Object>();
+        for (Enumeration<String> keys = props.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            if (key.equals(PERSISTENCEPID) || key.equals(Constants.SERVICE_PID)
+                    || key.equals(ConfigurationAdmin.SERVICE_BUNDLELOCATION))
+                continue;
+            Object value = props.get(key);
+            dict.put(key, PropertyParser.value(PropertyParser.format(value), PropertyParser.type(value)));
+        }
+        return dict;
+    }
+
+    /**
+     * Write the registered changes to the file. Changes that are equal to the
+     * contents of the file, like the ones pushed by this handler itself, are
+     * ignored. The file is written to a temporary file that replaces the file
+     * and the new contents count as read, so the write does not cause an
+     * import of the file.
+     *
+     * @throws IOException In case the file cannot be written
+     */
+    synchronized void writeBack() throws IOException {
+        try {
+            writeChanges();
+        } catch (IOException | RuntimeException exc) {
+            statistics.error(exc);
+            throw exc;
+        }
+    }
+
+    private void writeChanges() throws IOException {
+        if (admin == null || changes.isEmpty())
             return;
-        update(adm);
+        // Local pid to the new contents, null for a removed pid.
+        Map<String, Dictionary<String, Object>> values = new HashMap<String, Dictionary<String, Object>>();
+        for (Iterator<Map.Entry<String, String>> it = changes.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, String> entry = it.next();
+            it.remove();
+            String localPid = entry.getKey();
+            if (!pushed.containsKey(localPid))
+                continue;
+            Dictionary<String, Object> dict = null;
+            if (entry.getValue().length() > 0) {
+                Configuration config = configuration(localPid, entry.getValue());
+                Dictionary<String, Object> props;
+                try {
+                    props = config == null ? null : config.getProperties();
+                } catch (IllegalStateException exc) {
+                    props = null;
+                }
+                // Deleted in the mean time, the delete event follows.
+                if (props == null)
+                    continue;
+                // The echo of a push by this handler itself.
+                dict = persisted(props);
+                if (equal(dict, pushed.get(localPid)))
+                    continue;
+            }
+            values.put(localPid, dict);
+        }
+        if (values.isEmpty())
+            return;
+        // Do not skip changes made to the file that are not read yet.
+        boolean current = hash != null && file.exists() && hash.equals(Snapshot.hash(file));
+        String written = write(values);
+        for (Map.Entry<String, Dictionary<String, Object>> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                pushed.remove(entry.getKey());
+                configs.remove(entry.getKey());
+            } else {
+                pushed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (current) {
+            checked = System.currentTimeMillis();
+            size = file.length();
+            modified = file.lastModified();
+            hash = written;
+            snapshot.put(file, hash, new HashMap<String, Dictionary<String, Object>>(pushed));
+        }
+    }
+
+    /**
+     * Return the configuration of a changed pid. The configurations pushed by
+     * this handler and the factory configurations are known without a query,
+     * only other ones, like the ones of a snapshot, are queried once.
+     */
+    private Configuration configuration(String localPid, String pid) throws IOException {
+        Configuration config = configs.get(localPid);
+        if (config != null && config.getPid().equals(pid))
+            return config;
+        config = localPid.equals(pid) ? FactoryIndex.lookup(admin, pid) : index.find(admin, localPid);
+        if (config == null || !config.getPid().equals(pid))
+            return null;
+        configs.put(localPid, config);
+        return config;
+    }
+
+    /**
+     * Format a property as a line of a property file.
+     */
+    private static String line(String key, Object value) throws IOException {
+        Properties props = new Properties();
+        String type = PropertyParser.type(value);
+        // A name that ends like a type needs the type to be read back.
+        if (type == null && PropertyParser.typeIndex(key, 0) >= 0)
+            type = PropertyParser.exactType(value);
+        props.setProperty(type == null ? key : key + PropertyParser.TYPE + type,
+                PropertyParser.format(value));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        props.store(bytes, null);
+        for (String line : new String(bytes.toByteArray(), ENCODING).split("\\r?\\n")) {
+            if (!line.startsWith("#"))
+                return line;
+        }
+        return "";
+    }
+
+    /**
+     * Write new contents of a number of pids to the file. Changed properties
+     * are replaced in place and removed properties are removed, so comments
+     * and the order of the file are kept. Lines that were skipped when the
+     * file was read are kept as well. A property that occurs more than once is
+     * written at its last occurrence, the one that is read, and the earlier
+     * occurrences are removed. New properties are added after the last
+     * property of their pid.
+     *
+     * @return The hash of the written contents
+     */
+    private String write(Map<String, Dictionary<String, Object>> values) throws IOException {
+        List<String> lines = file.exists() ? Files.readAllLines(file.toPath(), ENCODING)
+                : Collections.<String>emptyList();
+        // The start of every logical line and, per property, the start of its
+        // last occurrence, which is the one that is read
+        List<Integer> starts = new ArrayList<Integer>();
+        Map<String, Integer> occurrences = new HashMap<String, Integer>();
+        for (int i = 0; i < lines.size();) {
+            starts.add(Integer.valueOf(i));
+            String key = PropertyParser.key(lines.get(i++));
+            if (key != null) {
+                // Skip the continuation lines.
+                while (PropertyParser.continues(lines.get(i - 1)) && i < lines.size()) {
+                    i++;
+                }
+                String[] split = parser.split(key);
+                occurrences.put(split[0] + PropertyParser.SEP + split[1], starts.get(starts.size() - 1));
+            }
+        }
+        starts.add(Integer.valueOf(lines.size()));
+        List<String> out = new ArrayList<String>();
+        // The properties that are written and the position after the last property per pid
+        Set<String> written = new HashSet<String>();
+        final Map<String, Integer> last = new HashMap<String, Integer>();
+        for (int n = 0; n < starts.size() - 1; n++) {
+            int start = starts.get(n).intValue();
+            int end = starts.get(n + 1).intValue();
+            String key = PropertyParser.key(lines.get(start));
+            String[] split = key == null ? null : parser.split(key);
+            // Properties that were not pushed, like erroneous ones, are kept.
+            if (split == null || !values.containsKey(split[0])
+                    || pushed.get(split[0]).get(split[1]) == null) {
+                out.addAll(lines.subList(start, end));
+                continue;
+            }
+            Dictionary<String, Object> dict = values.get(split[0]);
+            Object value = dict == null ? null : dict.get(split[1]);
+            if (split[2] != null)
+                key = key.substring(0, key.lastIndexOf(PropertyParser.TYPE));
+            // The earlier occurrences of a duplicate property are removed.
+            String name = split[0] + PropertyParser.SEP + split[1];
+            if (value != null && occurrences.get(name).intValue() == start) {
+                written.add(name);
+                out.add(line(key, value));
+            }
+            last.put(split[0], out.size());
+        }
+        // Add the new properties, starting at the end so positions stay valid.
+        for (String pid : values.keySet()) {
+            if (!last.containsKey(pid))
+                last.put(pid, out.size());
+        }
+        List<String> pids = new ArrayList<String>(values.keySet());
+        Collections.sort(pids, new Comparator<String>() {
+            @Override
+            public int compare(String p1, String p2) {
+                return last.get(p2).compareTo(last.get(p1));
+            }
+        });
+        for (String pid : pids) {
+            Dictionary<String, Object> dict = values.get(pid);
+            if (dict == null)
+                continue;
+            List<String> added = new ArrayList<String>();
+            for (Enumeration<String> keys = dict.keys(); keys.hasMoreElements();) {
+                String prop = keys.nextElement();
+                if (written.contains(pid + PropertyParser.SEP + prop))
+                    continue;
+                String key = pid.equals(getBasePid()) && !prop.contains(PropertyParser.SEP) ? prop
+                        : pid + PropertyParser.SEP + prop;
+                added.add(line(key, dict.get(prop)));
+            }
+            Collections.sort(added);
+            out.addAll(last.get(pid), added);
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("." + file.getName(), ".tmp", dir);
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp.toPath(), Files.getPosixFilePermissions(file.toPath()));
+            } catch (Exception exc) {
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (String line : out) {
+                bytes.write(line.getBytes(ENCODING));
+                bytes.write(System.lineSeparator().getBytes(ENCODING));
+            }
+            Files.write(tmp.toPath(), bytes.toByteArray());
+            Files.move(tmp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+            MessageDigest digest = Snapshot.digest();
+            digest.update(bytes.toByteArray());
+            return Snapshot.hash(digest);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Check whether the size and modification time of the file are the same as
+     * when it was last read. They are not trusted when the file was modified
+     * too shortly before it was read, since a later change may then have the
+     * same modification time.
+     */
+    private boolean unchanged() {
+        long time = file.lastModified();
+        return hash != null && file.length() == size && time == modified
+                && time + GRANULARITY < checked;
+    }
+
+    @Override
+    public synchronized void checkConfiguration(ConfigurationAdmin adm) throws IOException {
+        String current = null;
+        if (this.admin == adm) {
+            // A removed file is handled as an empty file.
+            if (!file.exists()) {
+                if (hash == null && pushed.isEmpty())
+                    return;
+            } else {
+                if (unchanged())
+                    return;
+                long now = System.currentTimeMillis();
+                long length = file.length();
+                long time = file.lastModified();
+                current = Snapshot.hash(file);
+                if (current.equals(hash)) {
+                    // Touched or copied without changes.
+                    checked = now;
+                    size = length;
+                    modified = time;
+                    return;
+                }
+            }
+        }
+        if (this.admin != adm) {
+            pushed.clear();
+            configs.clear();
+            // The pids of the last run, so pids removed from the file in the
+            // mean time, like while the bundle was stopped, are deleted.
+            Snapshot.Entry entry = snapshot.get(file);
+            if (entry != null)
+                pushed.putAll(entry.properties);
+        }
+        statistics.sync();
+        int count;
+        try {
+            count = update(adm, current);
+        } catch (IOException | RuntimeException exc) {
+            // Make sure the next check updates again.
+            hash = null;
+            statistics.error(exc);
+            throw exc;
+        }
+        // The lag is only known for changes of the file.
+        if (this.admin == adm && count > 0)
+            statistics.lag(System.currentTimeMillis() - modified);
         this.admin = adm;
-        this.lastRead = System.currentTimeMillis();
     }
 }
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser of property files. Reads a file in a single pass, with the syntax of
+ * {@link java.util.Properties}, and groups the properties by pid directly. A
+ * key has the form "pid..name", or just "name" for the base pid of the file.
+ * The name may be followed by a type, like "pid..port@Integer". Supported
+ * types are String, Integer, Long, Boolean and Double, and arrays of these,
+ * like "Integer[]", which are comma separated. An '@' that is not followed by
+ * a supported type is part of the name. An empty array value is an
+ * empty array. Values without a type are strings, or string arrays when they
+ * contain a comma. Errors are reported to
+ * the diagnostics, the erroneous property is skipped.
+ */
+class PropertyParser {
+    // The PID-property separator
+    static final String SEP = "..";
+    // The property-type separator
+    static final char TYPE = '@';
+    private static final String[] TYPES = { "String", "Integer", "Long", "Boolean", "Double" };
+    private static final Class<?>[] CLASSES = { String.class, Integer.class, Long.class, Boolean.class, Double.class };
+    private final String basePid;
+    private final Diagnostics diagnostics;
+    // The pid of the previous property
+    private String last;
+
+    /**
+     * Receiver of the errors found while parsing.
+     */
+    interface Diagnostics {
+        /**
+         * Report an error.
+         *
+         * @param file The file
+         * @param line The number of the line the property starts on
+         * @param message The error
+         */
+        void error(File file, int line, String message);
+    }
+
+    /**
+     * Create a parser.
+     *
+     * @param basePid The pid of properties without a pid in their key
+     * @param diagnostics The receiver of errors
+     */
+    PropertyParser(String basePid, Diagnostics diagnostics) {
+        this.basePid = basePid;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Split a key in its pid, property name and type. The type is null when
+     * the key does not contain one.
+     */
+    String[] split(String key) {
+        int index = key.lastIndexOf(SEP);
+        String pid = index <= 0 ? basePid : key.substring(0, index);
+        String prop = index <= 0 ? key : key.substring(index + SEP.length());
+        int type = typeIndex(prop, 0);
+        if (type < 0)
+            return new String[] { pid, prop, null };
+        return new String[] { pid, prop.substring(0, type), prop.substring(type + 1) };
+    }
+
+    /**
+     * Return the position of the type separator in a key, or -1 if the key
+     * does not end with a supported type. Keys like "mail.from@host" have
+     * no type.
+     *
+     * @param key The key
+     * @param from The first position the separator may be at
+     */
+    static int typeIndex(CharSequence key, int from) {
+        int index = key.length() - 1;
+        while (index >= from && key.charAt(index) != TYPE) {
+            index--;
+        }
+        if (index < from)
+            return -1;
+        int end = key.length();
+        if (end - index > 3 && key.charAt(end - 1) == ']' && key.charAt(end - 2) == '[')
+            end -= 2;
+        for (String type : TYPES) {
+            if (type.length() != end - index - 1)
+                continue;
+            int i = 0;
+            while (i < type.length()
+                    && Character.toLowerCase(key.charAt(index + 1 + i)) == Character.toLowerCase(type.charAt(i))) {
+                i++;
+            }
+            if (i == type.length())
+                return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a file.
+     *
+     * @param file The file
+     * @param digest The digest to update with the contents of the file, so
+     * the hash matches the properties read. May be null
+     * @return The properties, mapped by pid
+     * @throws IOException In case the file cannot be read
+     */
+    Map<String, Dictionary<String, Object>> parse(File file, MessageDigest digest) throws IOException {
+        Map<String, Dictionary<String, Object>> map = new HashMap<String, Dictionary<String, Object>>();
+        InputStream in = new FileInputStream(file);
+        if (digest != null)
+            in = new DigestInputStream(in, digest);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1));
+        try {
+            StringBuilder key = new StringBuilder();
+            StringBuilder value = new StringBuilder();
+            int number = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int start = ++number;
+                int pos = skip(line, 0);
+                if (pos == line.length() || line.charAt(pos) == '#' || line.charAt(pos) == '!')
+                    continue;
+                // Join the continuation lines.
+                String logical = line.substring(pos);
+                while (continues(logical)) {
+                    String next = reader.readLine();
+                    logical = logical.substring(0, logical.length() - 1);
+                    if (next == null)
+                        break;
+                    number++;
+                    logical += next.substring(skip(next, 0));
+                }
+                key.setLength(0);
+                value.setLength(0);
+                try {
+                    pos = unescape(logical, 0, true, key);
+                    pos = skip(logical, pos);
+                    if (pos < logical.length() && (logical.charAt(pos) == '=' || logical.charAt(pos) == ':'))
+                        pos = skip(logical, pos + 1);
+                    unescape(logical, pos, false, value);
+                    add(map, key, value);
+                } catch (IllegalArgumentException exc) {
+                    diagnostics.error(file, start, exc.getMessage());
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException exc) {
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Return the key of a line of a property file.
+     *
+     * @param line The line
+     * @return The key, or null if the line is empty, a comment or malformed
+     */
+    static String key(String line) {
+        int pos = skip(line, 0);
+        if (pos == line.length() || line.charAt(pos) == '#' || line.charAt(pos) == '!')
+            return null;
+        StringBuilder key = new StringBuilder();
+        try {
+            unescape(line, pos, true, key);
+        } catch (IllegalArgumentException exc) {
+            return null;
+        }
+        return key.toString();
+    }
+
+    /**
+     * Add a property to the map with the dictionaries.
+     */
+    private void add(Map<String, Dictionary<String, Object>> map, StringBuilder key, StringBuilder text) {
+        int index = key.lastIndexOf(SEP);
+        int end = key.length();
+        int type = typeIndex(key, index + SEP.length());
+        String prop = key.substring(index <= 0 ? 0 : index + SEP.length(), type < 0 ? end : type);
+        if (prop.length() == 0)
+            return;
+        Object value = value(text.toString(), type < 0 ? null : key.substring(type + 1));
+        // Look up the dictionary before creating the pid, so the pid is only created once.
+        String pid = index <= 0 ? basePid : null;
+        Dictionary<String, Object> dict = pid == null ? lookup(map, key, index) : map.get(pid);
+        if (dict == null) {
+            if (pid == null)
+                pid = last;
+            dict = new Hashtable<String, Object>();
+            map.put(pid, dict);
+        }
+        dict.put(prop, value);
+    }
+
+    /**
+     * Find the dictionary of the pid that is the start of a key, without
+     * creating the pid. Files typically contain a number of properties per
+     * pid, so the pid of the previous property is tried first.
+     */
+    private Dictionary<String, Object> lookup(Map<String, Dictionary<String, Object>> map,
+            StringBuilder key, int length) {
+        if (last != null && last.length() == length && startsWith(key, last))
+            return map.get(last);
+        last = key.substring(0, length);
+        return map.get(last);
+    }
+
+    private static boolean startsWith(StringBuilder key, String pid) {
+        for (int i = pid.length() - 1; i >= 0; i--) {
+            if (key.charAt(i) != pid.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Convert the text of a value to a value of a type.
+     *
+     * @param text The text
+     * @param type The type, null for an untyped value
+     * @return The value
+     * @throws IllegalArgumentException In case the type is unknown or the text
+     * is not valid for the type
+     */
+    static Object value(String text, String type) {
+        if (type == null) {
+            if (text.indexOf(',') < 0)
+                return text;
+            // Comma separated values are a string array.
+            List<String> values = split(text, false);
+            return values.size() > 1 ? values.toArray(new String[values.size()]) : text;
+        }
+        boolean array = type.endsWith("[]");
+        String name = array ? type.substring(0, type.length() - 2) : type;
+        int kind = -1;
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equalsIgnoreCase(name))
+                kind = i;
+        }
+        if (kind < 0)
+            throw new IllegalArgumentException("unknown type " + type);
+        if (!array)
+            return convert(kind == 0 ? text : text.trim(), kind);
+        List<String> values = (kind == 0 ? text : text.trim()).length() == 0 ? Collections.<String>emptyList()
+                : split(text, kind != 0);
+        Object result = Array.newInstance(CLASSES[kind], values.size());
+        for (int i = 0; i < values.size(); i++) {
+            Array.set(result, i, convert(values.get(i), kind));
+        }
+        return result;
+    }
+
+    private static Object convert(String text, int kind) {
+        try {
+            switch (kind) {
+            case 1:
+                return Integer.valueOf(text);
+            case 2:
+                return Long.valueOf(text);
+            case 3:
+                if (!text.equalsIgnoreCase("true") && !text.equalsIgnoreCase("false"))
+                    throw new IllegalArgumentException("invalid " + TYPES[kind] + " value \"" + text + "\"");
+                return Boolean.valueOf(text);
+            case 4:
+                return Double.valueOf(text);
+            default:
+                return text;
+            }
+        } catch (NumberFormatException exc) {
+            throw new IllegalArgumentException("invalid " + TYPES[kind] + " value \"" + text + "\"");
+        }
+    }
+
+    /**
+     * Split a comma separated text, like {@link String#split(String)} does.
+     */
+    private static List<String> split(String text, boolean trim) {
+        List<String> values = new ArrayList<String>();
+        int from = 0;
+        for (int index; (index = text.indexOf(',', from)) >= 0; from = index + 1) {
+            values.add(trim ? text.substring(from, index).trim() : text.substring(from, index));
+        }
+        values.add(trim ? text.substring(from).trim() : text.substring(from));
+        // Trailing empty values are dropped.
+        while (values.size() > 1 && values.get(values.size() - 1).length() == 0) {
+            values.remove(values.size() - 1);
+        }
+        return values;
+    }
+
+    /**
+     * Return the type of a value, as used in a key. Strings and string arrays
+     * only get a type when their text without a type would not be read back
+     * as the same value, like a string with a comma or an array with a single
+     * element. Otherwise null is returned.
+     */
+    static String type(Object value) {
+        String type = exactType(value);
+        if (!type.startsWith(TYPES[0]))
+            return type;
+        Object untyped = value(format(value), null);
+        return Arrays.deepEquals(new Object[] { value }, new Object[] { untyped }) ? null : type;
+    }
+
+    /**
+     * Return the type of a value, including String and String[]. Values of
+     * other types than the supported ones are written as strings.
+     */
+    static String exactType(Object value) {
+        boolean array = value instanceof Collection || value.getClass().isArray();
+        Class<?> type = value.getClass().isArray() ? value.getClass().getComponentType() : value.getClass();
+        for (int i = 1; i < TYPES.length; i++) {
+            if (type == CLASSES[i])
+                return array ? TYPES[i] + "[]" : TYPES[i];
+        }
+        return array ? TYPES[0] + "[]" : TYPES[0];
+    }
+
+    /**
+     * Convert a value to its text, the reverse of {@link #value(String, String)}.
+     */
+    static String format(Object value) {
+        List<Object> values = new ArrayList<Object>();
+        if (value instanceof Collection) {
+            values.addAll((Collection<?>) value);
+        } else if (value.getClass().isArray()) {
+            for (int i = 0; i < Array.getLength(value); i++) {
+                values.add(Array.get(value, i));
+            }
+        } else {
+            return value.toString();
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Object v : values) {
+            if (builder.length() > 0)
+                builder.append(',');
+            builder.append(v);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Skip white space.
+     */
+    private static int skip(String line, int pos) {
+        while (pos < line.length() && (line.charAt(pos) == ' ' || line.charAt(pos) == '\t'
+                || line.charAt(pos) == '\f')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Indicate whether a line is continued on the next line, meaning that it
+     * ends with an odd number of backslashes.
+     */
+    static boolean continues(String line) {
+        int count = 0;
+        for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+            count++;
+        }
+        return count % 2 == 1;
+    }
+
+    /**
+     * Unescape a key or value.
+     *
+     * @param line The logical line
+     * @param pos The start position
+     * @param key Indication whether a key is read, which ends at an unescaped
+     * '=', ':' or white space
+     * @param out The builder the unescaped text is added to
+     * @return The position after the text
+     */
+    private static int unescape(String line, int pos, boolean key, StringBuilder out) {
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if (key && (c == '=' || c == ':' || c == ' ' || c == '\t' || c == '\f'))
+                return pos;
+            pos++;
+            if (c != '\\' || pos == line.length()) {
+                out.append(c);
+                continue;
+            }
+            c = line.charAt(pos++);
+            switch (c) {
+            case 't':
+                out.append('\t');
+                break;
+            case 'n':
+                out.append('\n');
+                break;
+            case 'r':
+                out.append('\r');
+                break;
+            case 'f':
+                out.append('\f');
+                break;
+            case 'u':
+                if (pos + 4 > line.length())
+                    throw new IllegalArgumentException("malformed \\uxxxx encoding");
+                try {
+                    out.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+                } catch (NumberFormatException exc) {
+                    throw new IllegalArgumentException("malformed \\uxxxx encoding");
+                }
+                pos += 4;
+                break;
+            default:
+                out.append(c);
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Snapshot of the parsed property files. Holds, per file, the hash of the
+ * contents and the dictionaries that were read from it. The snapshot is
+ * stored in the data area of the bundle, so after a restart an unchanged
+ * file does not need to be parsed again.
+ */
+class Snapshot {
+    // Format version of the stored snapshot, version 1 did not store the
+    // type of string values
+    private static final int VERSION = 2;
+    private final File store;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The snapshot of a single file.
+     */
+    static class Entry {
+        final String hash;
+        final Map<String, Dictionary<String, Object>> properties;
+
+        Entry(String hash, Map<String, Dictionary<String, Object>> properties) {
+            this.hash = hash;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * Create the snapshot and load the stored one, if any.
+     *
+     * @param store The file the snapshot is stored in. May be null, in which
+     * case the snapshot is not stored
+     */
+    Snapshot(File store) {
+        this.store = store;
+        if (store == null || !store.exists())
+            return;
+        try {
+            load();
+        } catch (Exception exc) {
+            // An unreadable snapshot is the same as no snapshot.
+            entries.clear();
+        }
+    }
+
+    /**
+     * Return a new digest for the hash of file contents.
+     */
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /**
+     * Convert a digest to its hash string.
+     */
+    static String hash(MessageDigest digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Return the hash of the contents of a file.
+     *
+     * @param file The file
+     * @return The hash
+     * @throws IOException In case the file cannot be read
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest = digest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0;) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return hash(digest);
+    }
+
+    Entry get(File file) {
+        return entries.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Return the files in the snapshot, including the ones that no longer
+     * exist.
+     */
+    Collection<File> files() {
+        List<File> files = new ArrayList<File>();
+        for (String name : entries.keySet()) {
+            files.add(new File(name));
+        }
+        return files;
+    }
+
+    void put(File file, String hash, Map<String, Dictionary<String, Object>> properties) {
+        entries.put(file.getAbsolutePath(), new Entry(hash, properties));
+    }
+
+    void remove(File file) {
+        entries.remove(file.getAbsolutePath());
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(store)));
+        try {
+            if (in.readInt() != VERSION)
+                return;
+            for (int files = in.readInt(); files > 0; files--) {
+                String path = read(in);
+                String hash = read(in);
+                Map<String, Dictionary<String, Object>> properties = new HashMap<String, Dictionary<String, Object>>();
+                for (int pids = in.readInt(); pids > 0; pids--) {
+                    String pid = read(in);
+                    Dictionary<String, Object> dict = new Hashtable<String, Object>();
+                    for (int props = in.readInt(); props > 0; props--) {
+                        String key = read(in);
+                        String type = read(in);
+                        dict.put(key, PropertyParser.value(read(in), type));
+                    }
+                    properties.put(pid, dict);
+                }
+                entries.put(path, new Entry(hash, properties));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Store the snapshot. The snapshot is written to a temporary file that
+     * replaces the stored one.
+     *
+     * @throws IOException In case the snapshot cannot be written
+     */
+    void save() throws IOException {
+        if (store == null)
+            return;
+        File tmp = new File(store.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            Map<String, Entry> copy = new HashMap<String, Entry>(entries);
+            out.writeInt(copy.size());
+            for (Map.Entry<String, Entry> entry : copy.entrySet()) {
+                write(out, entry.getKey());
+                write(out, entry.getValue().hash);
+                out.writeInt(entry.getValue().properties.size());
+                for (Map.Entry<String, Dictionary<String, Object>> pid : entry.getValue().properties.entrySet()) {
+                    write(out, pid.getKey());
+                    Dictionary<String, Object> dict = pid.getValue();
+                    out.writeInt(dict.size());
+                    for (Enumeration<String> keys = dict.keys(); keys.hasMoreElements();) {
+                        String key = keys.nextElement();
+                        Object value = dict.get(key);
+                        // Always typed, untyped text does not read back every string.
+                        write(out, key);
+                        write(out, PropertyParser.exactType(value));
+                        write(out, PropertyParser.format(value));
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), store.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    // Strings are written with their length, writeUTF is limited to 64K.
+    private static void write(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String read(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
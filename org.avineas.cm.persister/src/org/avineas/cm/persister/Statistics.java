@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.avineas.cm.persister.metrics.FileMetrics;
+import org.avineas.cm.persister.metrics.PersisterMetrics;
+
+/**
+ * Implementation of the persister metrics. Errors in the files are counted
+ * per file, the last one is available as the last error of the file.
+ */
+class Statistics implements PersisterMetrics, PropertyParser.Diagnostics {
+    final AtomicLong syncs = new AtomicLong();
+    final AtomicLong pushed = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    private final ConcurrentHashMap<String, FileStatistics> files = new ConcurrentHashMap<String, FileStatistics>();
+
+    /**
+     * Return the statistics of a file, created when needed.
+     */
+    FileStatistics file(File file) {
+        String path = file.getPath();
+        FileStatistics statistics = files.get(path);
+        if (statistics == null) {
+            statistics = new FileStatistics(this);
+            FileStatistics existing = files.putIfAbsent(path, statistics);
+            if (existing != null)
+                statistics = existing;
+        }
+        return statistics;
+    }
+
+    /**
+     * Count an error that is not reported otherwise.
+     */
+    void error() {
+        errors.incrementAndGet();
+    }
+
+    @Override
+    public void error(File file, int line, String message) {
+        file(file).parseError(line, message);
+    }
+
+    @Override
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    @Override
+    public long getPushed() {
+        return pushed.get();
+    }
+
+    @Override
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public Map<String, FileMetrics> getFiles() {
+        return new TreeMap<String, FileMetrics>(files);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * Pool that runs the synchronizers on a fixed number of threads. Every
+ * synchronizer runs on its own, so a failing or slow synchronizer does not
+ * hold up the others. A synchronizer that is triggered while it is already
+ * queued is not queued again. If it is triggered while running, it is run
+ * once more afterwards so the change that caused the trigger is not missed.
+ * A synchronizer that runs longer than the timeout is interrupted. An
+ * interrupt does not stop a blocking file read or a call into the
+ * configuration admin, so the timeout is a best effort. The thread of a
+ * synchronizer that timed out is left to it, and the pool gets an extra
+ * thread until the synchronizer finishes, so the others are not held up.
+ */
+class SynchronizerPool {
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService watchdog;
+    private final long timeout;
+    private final Statistics statistics;
+    // The synchronizers that are queued or running
+    private final Map<ConfigurationSynchronizer, Job> jobs = new HashMap<ConfigurationSynchronizer, Job>();
+
+    /**
+     * Create the pool.
+     *
+     * @param threads The number of threads to run the synchronizers on
+     * @param timeout The time in milliseconds a synchronizer may run before it
+     * is interrupted
+     * @param statistics The metrics to count errors and timeouts in
+     */
+    SynchronizerPool(int threads, long timeout, Statistics statistics) {
+        this.timeout = timeout;
+        this.statistics = statistics;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory("Configuration synchronizer"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(factory("Configuration synchronizer watchdog"));
+    }
+
+    /**
+     * Return a factory of daemon threads with a name.
+     */
+    static ThreadFactory factory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Synchronize a number of synchronizers with a configuration admin. Returns
+     * immediately, the synchronization is done on the threads of the pool.
+     *
+     * @param admin The configuration admin, may be null
+     * @param synchronizers The synchronizers to run
+     */
+    synchronized void submit(ConfigurationAdmin admin,
+            Collection<? extends ConfigurationSynchronizer> synchronizers) {
+        for (ConfigurationSynchronizer s : synchronizers) {
+            Job job = jobs.get(s);
+            if (job != null) {
+                // Already queued or running, only the latest admin counts.
+                job.admin = admin;
+                if (job.thread != null)
+                    job.again = true;
+                continue;
+            }
+            job = new Job(s, admin);
+            jobs.put(s, job);
+            execute(job);
+        }
+    }
+
+    /**
+     * Change the number of threads of the pool.
+     */
+    private void resize(int delta) {
+        // The maximum may never be below the core size.
+        if (delta > 0) {
+            executor.setMaximumPoolSize(executor.getMaximumPoolSize() + delta);
+            executor.setCorePoolSize(executor.getCorePoolSize() + delta);
+        } else {
+            executor.setCorePoolSize(executor.getCorePoolSize() + delta);
+            executor.setMaximumPoolSize(executor.getMaximumPoolSize() + delta);
+        }
+    }
+
+    private void execute(Job job) {
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException exc) {
+            jobs.remove(job.synchronizer);
+        }
+    }
+
+    /**
+     * Close the pool. Running synchronizers are interrupted and queued ones
+     * are dropped.
+     */
+    void close() {
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    private class Job implements Runnable {
+        private final ConfigurationSynchronizer synchronizer;
+        private ConfigurationAdmin admin;
+        // The thread running the job, null when the job is queued
+        private Thread thread;
+        private boolean again;
+        // Indication whether the pool got an extra thread for this job
+        private boolean replaced;
+
+        Job(ConfigurationSynchronizer synchronizer, ConfigurationAdmin admin) {
+            this.synchronizer = synchronizer;
+            this.admin = admin;
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void run() {
+            ConfigurationAdmin adm;
+            synchronized (SynchronizerPool.this) {
+                thread = Thread.currentThread();
+                again = false;
+                adm = admin;
+            }
+            ScheduledFuture<?> alarm = null;
+            try {
+                alarm = watchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        interrupt();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+                synchronizer.checkConfiguration(adm);
+            } catch (Exception exc) {
+                statistics.error();
+            } finally {
+                if (alarm != null)
+                    alarm.cancel(false);
+                synchronized (SynchronizerPool.this) {
+                    thread = null;
+                    if (replaced) {
+                        replaced = false;
+                        resize(-1);
+                    }
+                    // Clear an interrupt of the watchdog that came too late.
+                    Thread.interrupted();
+                    if (again) {
+                        execute(this);
+                    } else {
+                        jobs.remove(synchronizer);
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("synthetic-access")
+        private void interrupt() {
+            synchronized (SynchronizerPool.this) {
+                if (thread != null) {
+                    statistics.timeouts.incrementAndGet();
+                    thread.interrupt();
+                    // The thread may not react, give the pool a replacement.
+                    if (!replaced && !executor.isShutdown()) {
+                        replaced = true;
+                        resize(1);
+                    }
+                }
+            }
+        }
+    }
+}
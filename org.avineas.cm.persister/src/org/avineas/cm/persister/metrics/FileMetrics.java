@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister.metrics;
+
+/**
+ * Metrics of a single property file.
+ */
+public interface FileMetrics {
+    /**
+     * @return The number of synchronizations with the configuration admin
+     */
+    long getSyncs();
+
+    /**
+     * @return The number of times the file was parsed. A file that matches the
+     * snapshot is not parsed
+     */
+    long getParses();
+
+    /**
+     * @return The total time spent parsing the file, in microseconds
+     */
+    long getParseTime();
+
+    /**
+     * @return The number of pids pushed to the configuration admin
+     */
+    long getPushed();
+
+    /**
+     * @return The number of pids that were not pushed since they did not change
+     */
+    long getSkipped();
+
+    /**
+     * @return The number of failed synchronizations and write-backs
+     */
+    long getErrors();
+
+    /**
+     * @return The number of properties skipped because of errors in the file
+     */
+    long getParseErrors();
+
+    /**
+     * @return The last error, of a synchronization, a write-back or in the
+     * contents of the file, or null if there was none
+     */
+    String getLastError();
+
+    /**
+     * @return The time between the last modification of the file and the
+     * push of its changes, in milliseconds, for the last change
+     */
+    long getLastLag();
+
+    /**
+     * @return The maximum time between a modification of the file and the
+     * push of its changes, in milliseconds
+     */
+    long getMaxLag();
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister.metrics;
+
+import java.util.Map;
+
+import javax.management.MXBean;
+
+/**
+ * Metrics of the configuration persister. Registered as a service and as the
+ * MBean "org.avineas.cm.persister:type=Metrics". The totals are kept over all
+ * files, also the ones that were removed.
+ */
+@MXBean
+public interface PersisterMetrics {
+    /**
+     * @return The number of synchronizations of a file with the configuration
+     * admin
+     */
+    long getSyncs();
+
+    /**
+     * @return The number of pids pushed to the configuration admin
+     */
+    long getPushed();
+
+    /**
+     * @return The number of pids that were not pushed since they did not change
+     */
+    long getSkipped();
+
+    /**
+     * @return The number of errors while synchronizing or writing back, which
+     * are otherwise not reported
+     */
+    long getErrors();
+
+    /**
+     * @return The number of synchronizations that were interrupted since they
+     * took too long
+     */
+    long getTimeouts();
+
+    /**
+     * @return The metrics per file, mapped by the path of the file
+     */
+    Map<String, FileMetrics> getFiles();
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * Test of the reading and writing back of a property file by a
+ * {@link PropertyFileHandler}.
+ */
+public class PropertyFileHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    // The properties of the configurations, per pid
+    private final Map<String, Dictionary<String, Object>> configurations = new HashMap<String, Dictionary<String, Object>>();
+
+    private static Dictionary<String, Object> copy(Dictionary<String, ?> dict) {
+        Dictionary<String, Object> copy = new Hashtable<String, Object>();
+        for (Enumeration<String> keys = dict.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            copy.put(key, dict.get(key));
+        }
+        return copy;
+    }
+
+    /**
+     * Return a configuration admin that only supports the plain
+     * configurations used by these tests.
+     */
+    private ConfigurationAdmin admin() {
+        return (ConfigurationAdmin) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ConfigurationAdmin.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getConfiguration"))
+                            return configuration((String) args[0]);
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private Configuration configuration(final String pid) {
+        return (Configuration) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Configuration.class }, new InvocationHandler() {
+                    @SuppressWarnings({ "unchecked", "synthetic-access" })
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getPid"))
+                            return pid;
+                        if (method.getName().equals("getFactoryPid"))
+                            return null;
+                        if (method.getName().equals("getProperties")) {
+                            Dictionary<String, Object> props = configurations.get(pid);
+                            if (props == null)
+                                return null;
+                            props = copy(props);
+                            props.put(Constants.SERVICE_PID, pid);
+                            return props;
+                        }
+                        if (method.getName().equals("update") && args != null) {
+                            configurations.put(pid, copy((Dictionary<String, ?>) args[0]));
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void lastOccurrenceOfDuplicateKeyWins() throws Exception {
+        File file = new File(folder.getRoot(), "test.properties");
+        Files.write(file.toPath(), Arrays.asList("# Duplicate key", "p..x=1", "p..y=a", "p..x=2"),
+                StandardCharsets.ISO_8859_1);
+        PropertyFileHandler handler = new PropertyFileHandler(file, false, new FactoryIndex(),
+                new Snapshot(new File(folder.getRoot(), "snapshot")), new Statistics());
+        ConfigurationAdmin admin = admin();
+        handler.checkConfiguration(admin);
+        assertEquals("2", configurations.get("p").get("x"));
+
+        // A change is written at the last occurrence, the earlier one is removed.
+        Dictionary<String, Object> props = admin.getConfiguration("p", null).getProperties();
+        props.put("x", "3");
+        admin.getConfiguration("p", null).update(props);
+        handler.changed("p", "p", false);
+        handler.writeBack();
+        assertEquals(Arrays.asList("# Duplicate key", "p..y=a", "p..x=3"),
+                Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2009-2014 aVineas IT Consulting. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.cm.persister;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of the storing and loading of a {@link Snapshot}.
+ */
+public class SnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void valuesKeepTheirType() throws Exception {
+        File store = new File(folder.getRoot(), "snapshot");
+        File file = new File(folder.getRoot(), "test.properties");
+        Dictionary<String, Object> dict = new Hashtable<String, Object>();
+        dict.put("comma", "a,b");
+        dict.put("single", new String[] { "one" });
+        dict.put("empty", new String[0]);
+        dict.put("plain", "text");
+        dict.put("list", new String[] { "x", "y" });
+        dict.put("port", Integer.valueOf(8080));
+        dict.put("ports", new Integer[] { 1, 2 });
+        Snapshot snapshot = new Snapshot(store);
+        snapshot.put(file, "hash", Collections.singletonMap("pid", dict));
+        snapshot.save();
+
+        Snapshot.Entry entry = new Snapshot(store).get(file);
+        assertEquals("hash", entry.hash);
+        Dictionary<String, Object> loaded = entry.properties.get("pid");
+        assertEquals("a,b", loaded.get("comma"));
+        assertArrayEquals(new String[] { "one" }, (String[]) loaded.get("single"));
+        assertArrayEquals(new String[0], (String[]) loaded.get("empty"));
+        assertTrue(PropertyFileHandler.equal(dict, loaded));
+    }
+}
@@ -16,12 +16,14 @@
 package org.avineas.log4j;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.Hashtable;
 
+import javax.management.ObjectName;
+
 import org.apache.log4j.LogManager;
-import org.apache.log4j.PropertyConfigurator;
-import org.apache.log4j.xml.DOMConfigurator;
+import org.avineas.log4j.metrics.LoggingMetrics;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -31,15 +33,34 @@ import org.osgi.service.cm.ManagedService;
 /**
  * Bundle activator for this log4j bundle. The activator listens for
  * configuration changes and when an update is received, re-configures
- * log4j with the new configuration.
+ * log4j with the new configuration. Only the differences with the running
+ * configuration are applied, see {@link Reconfigurator}. Unless the framework
+ * property "log4j.metrics" is false, the queues of asynchronous appenders and
+ * the times of the reconfigurations are available as a {@link LoggingMetrics}
+ * service and as the MBean "org.avineas.log4j:type=Metrics". When the
+ * framework property "log4j.metrics.appenders" is true, the appenders are
+ * metered as well, giving the events per logger and level and the append
+ * latencies. The loggers then return metering appenders instead of the
+ * configured ones.
  *
  * @author Arie van Wijngaarden
  */
 public class Activator implements BundleActivator, ManagedService {
     private static final String PID = "log4j.configuration";
     private static final String FILE = "file";
+    // Framework properties of the log service bridge
+    private static final String BRIDGE = "log4j.bridge";
+    private static final String BRIDGE_SIZE = "log4j.bridge.size";
+    private static final String METRICS = "log4j.metrics";
+    private static final String METRICS_APPENDERS = "log4j.metrics.appenders";
+    private static final String MBEANNAME = "org.avineas.log4j:type=Metrics";
     private Dictionary<String, String> properties;
     private ServiceRegistration<?> registration;
+    private Reconfigurator reconfigurator;
+    private LogBridge bridge;
+    private Statistics statistics;
+    private ServiceRegistration<?> metrics;
+    private boolean mbean;
 
 	@Override
 	public void start(BundleContext context) {
@@ -50,11 +71,45 @@ public class Activator implements BundleActivator, ManagedService {
 	        path = "configuration/log4j.xml";
 	    }
 	    properties.put(FILE, path);
+	    if (!"false".equals(context.getProperty(METRICS))) {
+	        statistics = new Statistics(Boolean.parseBoolean(context.getProperty(METRICS_APPENDERS)));
+	        metrics = context.registerService(LoggingMetrics.class.getName(), statistics, null);
+	        try {
+	            ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, new ObjectName(MBEANNAME));
+	            mbean = true;
+	        } catch (Exception exc) {
+	            // Already registered, like by another framework in this VM.
+	        }
+	    }
+	    reconfigurator = new Reconfigurator(statistics);
 	    updated(properties);
 	    registration = context.registerService(ManagedService.class.getName(),
 	        this, properties);
+	    if (!"false".equals(context.getProperty(BRIDGE)) && logServiceAvailable()) {
+	        String size = context.getProperty(BRIDGE_SIZE);
+	        bridge = new LogBridge(context, size == null ? 16384 : Integer.parseInt(size));
+	        bridge.open();
+	        if (statistics != null)
+	            statistics.setBridge(bridge);
+	    }
 	}
 
+    /**
+     * Indicate whether the log service API can be loaded. Its packages are
+     * imported optionally, without them the bridge is not started.
+     */
+    private static boolean logServiceAvailable() {
+        try {
+            Class.forName("org.osgi.service.log.LogReaderService");
+            Class.forName("org.osgi.util.tracker.ServiceTracker");
+            return true;
+        } catch (ClassNotFoundException exc) {
+            return false;
+        } catch (LinkageError exc) {
+            return false;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public synchronized void updated(@SuppressWarnings("rawtypes") Dictionary args) {
@@ -64,21 +119,27 @@ public class Activator implements BundleActivator, ManagedService {
         }
         String file = properties.get(FILE);
         if (file != null && new File(file).canRead()) {
-            LogManager.resetConfiguration();
-            if (file.endsWith(".properties")) {
-                // Load as property file.
-                PropertyConfigurator.configure(file);
-            }
-            else {
-                // Load the file as DOM file.
-                DOMConfigurator.configure(file);
-            }
+            // Skipped when the file did not change.
+            reconfigurator.configure(file);
         }
     }
 
 	@Override
 	public void stop(BundleContext context) {
-	    // Strictly spoken not needed.
 	    registration.unregister();
+	    if (metrics != null)
+	        metrics.unregister();
+	    if (mbean) {
+	        try {
+	            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEANNAME));
+	        } catch (Exception exc) {
+	        }
+	    }
+	    if (bridge != null)
+	        bridge.close();
+	    if (statistics != null)
+	        statistics.close();
+	    // Close the appenders, so asynchronous appenders write their buffers.
+	    LogManager.shutdown();
 	}
 }
\ No newline at end of file
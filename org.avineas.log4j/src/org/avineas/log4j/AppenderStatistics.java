@@ -0,0 +1,94 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Appender;
+import org.avineas.log4j.metrics.AppenderMetrics;
+
+/**
+ * Implementation of the metrics of a single appender.
+ */
+class AppenderStatistics implements AppenderMetrics {
+    private static final int BUCKETS = 25;
+    // The counter with the total latency, after the buckets
+    private static final int TOTAL = BUCKETS;
+    private final StripedCounters counters = new StripedCounters(BUCKETS + 1);
+    private final AtomicLong maxLatency = new AtomicLong();
+    // The appender with this name that is in use
+    private volatile Appender appender;
+
+    void setAppender(Appender appender) {
+        this.appender = appender;
+    }
+
+    /**
+     * Record the latency of a call to the appender.
+     *
+     * @param nanos The time the call took
+     */
+    void record(long nanos) {
+        counters.add(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000L)), 1);
+        counters.add(TOTAL, nanos);
+        for (long max = maxLatency.get(); nanos > max && !maxLatency.compareAndSet(max, nanos); max = maxLatency.get()) {
+        }
+    }
+
+    @Override
+    public long getAppends() {
+        long appends = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            appends += counters.get(i);
+        }
+        return appends;
+    }
+
+    @Override
+    public long getMeanLatency() {
+        long appends = getAppends();
+        return appends == 0 ? 0 : counters.get(TOTAL) / appends;
+    }
+
+    @Override
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = counters.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public int getQueueSize() {
+        Appender current = appender;
+        return current instanceof RingBufferAppender ? ((RingBufferAppender) current).getQueueSize() : -1;
+    }
+
+    @Override
+    public long getDropped() {
+        Appender current = appender;
+        if (!(current instanceof RingBufferAppender))
+            return 0;
+        RingBufferAppender async = (RingBufferAppender) current;
+        return async.getDropped() + async.getDiscarded();
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * File appender that writes through a {@link FileChannel}. Events are encoded
+ * into a reusable buffer that is written to the file when it is full or when
+ * the flush interval has passed, so the file is written in large blocks
+ * instead of once per event. The file can be rolled over by size, like with
+ * the rolling file appender:
+ * <pre>
+ * log4j.appender.FILE=org.avineas.log4j.ChannelFileAppender
+ * log4j.appender.FILE.File=logs/application.log
+ * log4j.appender.FILE.BufferSize=65536
+ * log4j.appender.FILE.FlushInterval=1000
+ * log4j.appender.FILE.MaxFileSize=10MB
+ * log4j.appender.FILE.MaxBackupIndex=5
+ * </pre>
+ * Events that are not flushed yet are lost when the process dies.
+ */
+public class ChannelFileAppender extends AppenderSkeleton {
+    private String fileName;
+    private boolean fileAppend = true;
+    private String encoding;
+    private int bufferSize = 64 * 1024;
+    private long flushInterval = 1000L;
+    private long maxFileSize;
+    private int maxBackupIndex = 1;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private CharsetEncoder encoder;
+    // The size of the file, excluding the buffer
+    private long size;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Open the file and start the flushing of the buffer. When called again,
+     * the buffered events are written to the file that is open and that file
+     * is closed first.
+     */
+    @Override
+    public synchronized void activateOptions() {
+        if (channel != null) {
+            try {
+                write();
+            } catch (IOException exc) {
+                errorHandler.error("Could not write to file " + fileName, exc, ErrorCode.FLUSH_FAILURE);
+            }
+            closeChannel();
+        }
+        if (fileName == null) {
+            LogLog.warn("File option not set for appender [" + name + "].");
+            return;
+        }
+        Charset charset;
+        try {
+            charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+        } catch (RuntimeException exc) {
+            LogLog.warn("Unsupported encoding " + encoding + " of appender [" + name + "], using the default.");
+            charset = Charset.defaultCharset();
+        }
+        encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        if (buffer == null || buffer.capacity() != Math.max(1024, bufferSize))
+            buffer = ByteBuffer.allocateDirect(Math.max(1024, bufferSize));
+        try {
+            open(fileAppend);
+        } catch (IOException exc) {
+            errorHandler.error("Could not open file " + fileName, exc, ErrorCode.FILE_OPEN_FAILURE);
+            return;
+        }
+        if (flushInterval > 0 && flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ChannelFileAppender-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flushBuffer();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void open(boolean append) throws IOException {
+        FileOutputStream out;
+        try {
+            out = new FileOutputStream(fileName, append);
+        } catch (FileNotFoundException exc) {
+            // Create the directory of the file, like the file appender does.
+            File parent = new File(fileName).getAbsoluteFile().getParentFile();
+            if (parent == null || !parent.mkdirs())
+                throw exc;
+            out = new FileOutputStream(fileName, append);
+        }
+        channel = out.getChannel();
+        size = channel.size();
+        if (layout != null && layout.getHeader() != null)
+            encode(layout.getHeader());
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        if (channel == null) {
+            errorHandler.error("No output file for appender named [" + name + "].");
+            return;
+        }
+        if (layout == null) {
+            errorHandler.error("No layout set for the appender named [" + name + "].");
+            return;
+        }
+        try {
+            encode(layout.format(event));
+            if (layout.ignoresThrowable()) {
+                String[] lines = event.getThrowableStrRep();
+                if (lines != null) {
+                    for (String line : lines) {
+                        encode(line);
+                        encode(Layout.LINE_SEP);
+                    }
+                }
+            }
+            if (maxFileSize > 0 && size + buffer.position() >= maxFileSize)
+                rollOver();
+        } catch (IOException exc) {
+            errorHandler.error("Could not write to file " + fileName, exc, ErrorCode.WRITE_FAILURE);
+        }
+    }
+
+    /**
+     * Encode text into the buffer. The buffer is written when it is full.
+     */
+    private void encode(String text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            write();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            write();
+        }
+    }
+
+    /**
+     * Write the buffer to the file.
+     */
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write the buffered events to the file. Called periodically, can be
+     * called to make sure all events so far are in the file.
+     */
+    public synchronized void flushBuffer() {
+        if (channel == null || buffer.position() == 0)
+            return;
+        try {
+            write();
+        } catch (IOException exc) {
+            errorHandler.error("Could not write to file " + fileName, exc, ErrorCode.FLUSH_FAILURE);
+        }
+    }
+
+    /**
+     * Roll the file over. The backups are renamed to the next index, the
+     * oldest is removed, and the file becomes backup 1. When a file cannot be
+     * removed or renamed, the file is not rolled over and is appended to.
+     */
+    private void rollOver() throws IOException {
+        write();
+        boolean renamed = true;
+        if (maxBackupIndex > 0) {
+            File oldest = new File(fileName + "." + maxBackupIndex);
+            if (oldest.exists())
+                renamed = oldest.delete();
+            for (int i = maxBackupIndex - 1; i >= 1 && renamed; i--) {
+                File backup = new File(fileName + "." + i);
+                if (backup.exists())
+                    renamed = backup.renameTo(new File(fileName + "." + (i + 1)));
+            }
+            if (renamed) {
+                closeChannel();
+                renamed = new File(fileName).renameTo(new File(fileName + ".1"));
+            }
+        }
+        if (!renamed) {
+            // Keep appending, like the rolling file appender. The roll over is
+            // tried again with the next event.
+            LogLog.warn("Could not roll over file " + fileName);
+            if (channel == null)
+                open(true);
+            return;
+        }
+        if (channel != null)
+            closeChannel();
+        open(false);
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException exc) {
+            LogLog.warn("Could not close file " + fileName, exc);
+        }
+        channel = null;
+    }
+
+    /**
+     * Close the appender. The buffer is written and the file is closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        if (channel == null)
+            return;
+        try {
+            if (layout != null && layout.getFooter() != null)
+                encode(layout.getFooter());
+            write();
+        } catch (IOException exc) {
+            errorHandler.error("Could not write to file " + fileName, exc, ErrorCode.CLOSE_FAILURE);
+        }
+        closeChannel();
+    }
+
+    @Override
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    public void setFile(String file) {
+        fileName = file.trim();
+    }
+
+    public String getFile() {
+        return fileName;
+    }
+
+    /**
+     * Set whether events are appended to an existing file. Defaults to true.
+     */
+    public void setAppend(boolean append) {
+        fileAppend = append;
+    }
+
+    public boolean getAppend() {
+        return fileAppend;
+    }
+
+    /**
+     * Set the character encoding of the file. Defaults to the platform
+     * encoding.
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Set the size of the buffer in bytes. The buffer is written to the file
+     * when it is full.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the time in milliseconds after which the buffer is written to the
+     * file. Zero means only when the buffer is full.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Set the size after which the file is rolled over, like "10MB". Zero,
+     * the default, means the file is not rolled over.
+     */
+    public void setMaxFileSize(String value) {
+        maxFileSize = OptionConverter.toFileSize(value, maxFileSize);
+    }
+
+    public void setMaximumFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public long getMaximumFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Set the number of backups kept when the file is rolled over. Zero
+     * means the file is truncated.
+     */
+    public void setMaxBackupIndex(int maxBackupIndex) {
+        this.maxBackupIndex = maxBackupIndex;
+    }
+
+    public int getMaxBackupIndex() {
+        return maxBackupIndex;
+    }
+}
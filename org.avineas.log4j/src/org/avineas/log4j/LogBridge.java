@@ -0,0 +1,237 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogReaderService;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+/**
+ * Bridge from the OSGi log service to log4j. Listens to every log reader
+ * service and logs the entries to the log4j logger named after the symbolic
+ * name of the bundle that logged them. The listener only puts the entries in
+ * a bounded queue, a separate thread hands them to log4j in batches, so the
+ * log dispatch thread of the framework never waits for the appenders. When
+ * the queue is full, entries are dropped and counted.
+ */
+class LogBridge implements LogListener, ServiceTrackerCustomizer<LogReaderService, LogReaderService> {
+    private static final String FQCN = LogBridge.class.getName();
+    // Logger of entries without a bundle
+    private static final String DEFAULT_LOGGER = "org.osgi.service.log";
+    private static final int BATCH = 256;
+    // Time the dispatcher waits for entries before it checks again, in case a wakeup is missed
+    private static final long IDLE = 1000000000L;
+    private final BundleContext context;
+    private final RingBuffer<LogEntry> queue;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // The time between logging and delivery of the last and the slowest entry, in milliseconds
+    private volatile long lag;
+    private volatile long maxLag;
+    private ServiceTracker<LogReaderService, LogReaderService> tracker;
+    private Thread dispatcher;
+    private volatile boolean closing;
+    private volatile boolean waiting;
+
+    /**
+     * Create the bridge.
+     *
+     * @param context The context to track the log reader services with
+     * @param size The size of the queue
+     */
+    LogBridge(BundleContext context, int size) {
+        this.context = context;
+        this.queue = new RingBuffer<LogEntry>(size);
+    }
+
+    /**
+     * Start the dispatcher and listen to the log reader services.
+     */
+    void open() {
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "Log4j log service bridge");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        tracker = new ServiceTracker<LogReaderService, LogReaderService>(context,
+                LogReaderService.class.getName(), this);
+        tracker.open();
+    }
+
+    /**
+     * Stop listening and deliver the entries in the queue.
+     */
+    void close() {
+        if (tracker != null)
+            tracker.close();
+        closing = true;
+        if (dispatcher != null) {
+            LockSupport.unpark(dispatcher);
+            try {
+                dispatcher.join();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (dropped.get() > 0)
+            LogLog.warn("Log service bridge dropped " + dropped.get() + " entries");
+    }
+
+    @Override
+    public LogReaderService addingService(ServiceReference<LogReaderService> reference) {
+        LogReaderService reader = context.getService(reference);
+        if (reader != null)
+            reader.addLogListener(this);
+        return reader;
+    }
+
+    @Override
+    public void modifiedService(ServiceReference<LogReaderService> reference, LogReaderService reader) {
+    }
+
+    @Override
+    public void removedService(ServiceReference<LogReaderService> reference, LogReaderService reader) {
+        reader.removeLogListener(this);
+        context.ungetService(reference);
+    }
+
+    @Override
+    public void logged(LogEntry entry) {
+        if (closing || !queue.offer(entry)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (waiting)
+            LockSupport.unpark(dispatcher);
+    }
+
+    private void dispatch() {
+        // Only used by the dispatcher, saves a lookup in the hierarchy per entry.
+        Map<String, Logger> loggers = new HashMap<String, Logger>();
+        LogEntry[] batch = new LogEntry[BATCH];
+        for (;;) {
+            int count = queue.drain(batch);
+            if (count > 0) {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        deliver(batch[i], loggers);
+                    } catch (RuntimeException exc) {
+                        LogLog.error("Could not deliver log entry", exc);
+                    }
+                    batch[i] = null;
+                }
+                continue;
+            }
+            if (closing)
+                break;
+            waiting = true;
+            // Check again, an entry may have been added before waiting was set.
+            if (queue.size() == 0 && !closing)
+                LockSupport.parkNanos(this, IDLE);
+            waiting = false;
+        }
+    }
+
+    private void deliver(LogEntry entry, Map<String, Logger> loggers) {
+        Bundle bundle = entry.getBundle();
+        String name = bundle == null ? null : bundle.getSymbolicName();
+        if (name == null)
+            name = DEFAULT_LOGGER;
+        Logger logger = loggers.get(name);
+        if (logger == null) {
+            logger = Logger.getLogger(name);
+            loggers.put(name, logger);
+        }
+        Level level = level(entry.getLevel());
+        if (logger.isEnabledFor(level)) {
+            // Logged with the time of the entry, not the time of delivery.
+            logger.callAppenders(new LoggingEvent(FQCN, logger, entry.getTime(), level,
+                    entry.getMessage(), entry.getException()));
+        }
+        long delay = System.currentTimeMillis() - entry.getTime();
+        lag = delay;
+        if (delay > maxLag)
+            maxLag = delay;
+        delivered.incrementAndGet();
+    }
+
+    private static Level level(int level) {
+        switch (level) {
+        case LogService.LOG_ERROR:
+            return Level.ERROR;
+        case LogService.LOG_WARNING:
+            return Level.WARN;
+        case LogService.LOG_INFO:
+            return Level.INFO;
+        default:
+            return Level.DEBUG;
+        }
+    }
+
+    /**
+     * Return the number of entries handed to log4j.
+     */
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Return the number of entries dropped because the queue was full.
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Return the time between logging and delivery of the last entry, in
+     * milliseconds.
+     */
+    long getLag() {
+        return lag;
+    }
+
+    /**
+     * Return the largest time between logging and delivery, in milliseconds.
+     */
+    long getMaxLag() {
+        return maxLag;
+    }
+
+    /**
+     * Return the number of entries in the queue.
+     */
+    int getQueueSize() {
+        return queue.size();
+    }
+}
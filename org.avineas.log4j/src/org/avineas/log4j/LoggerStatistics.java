@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import org.apache.log4j.Level;
+import org.avineas.log4j.metrics.LoggerMetrics;
+
+/**
+ * Implementation of the metrics of a single logger.
+ */
+class LoggerStatistics implements LoggerMetrics {
+    private static final int TRACE = 0;
+    private static final int DEBUG = 1;
+    private static final int INFO = 2;
+    private static final int WARN = 3;
+    private static final int ERROR = 4;
+    private static final int FATAL = 5;
+    private final StripedCounters counters = new StripedCounters(FATAL + 1);
+
+    /**
+     * Count an event. Custom levels count as the level below them.
+     */
+    void count(Level level) {
+        int value = level.toInt();
+        int index;
+        if (value < Level.DEBUG_INT) {
+            index = TRACE;
+        } else if (value < Level.INFO_INT) {
+            index = DEBUG;
+        } else if (value < Level.WARN_INT) {
+            index = INFO;
+        } else if (value < Level.ERROR_INT) {
+            index = WARN;
+        } else if (value < Level.FATAL_INT) {
+            index = ERROR;
+        } else {
+            index = FATAL;
+        }
+        counters.add(index, 1);
+    }
+
+    @Override
+    public long getTrace() {
+        return counters.get(TRACE);
+    }
+
+    @Override
+    public long getDebug() {
+        return counters.get(DEBUG);
+    }
+
+    @Override
+    public long getInfo() {
+        return counters.get(INFO);
+    }
+
+    @Override
+    public long getWarn() {
+        return counters.get(WARN);
+    }
+
+    @Override
+    public long getError() {
+        return counters.get(ERROR);
+    }
+
+    @Override
+    public long getFatal() {
+        return counters.get(FATAL);
+    }
+
+    @Override
+    public long getTotal() {
+        long total = 0;
+        for (int i = TRACE; i <= FATAL; i++) {
+            total += counters.get(i);
+        }
+        return total;
+    }
+}
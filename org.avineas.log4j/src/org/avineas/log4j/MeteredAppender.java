@@ -0,0 +1,123 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.ErrorHandler;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Appender that measures the calls to another appender. The appenders of the
+ * loggers are replaced by metered ones when the configuration is applied.
+ * Metered appenders of loggers also count the events per logger.
+ */
+class MeteredAppender implements Appender {
+    private final Appender appender;
+    private final Statistics statistics;
+    private final AppenderStatistics metrics;
+    private final boolean counting;
+
+    /**
+     * Create the appender.
+     *
+     * @param appender The appender to measure
+     * @param statistics The statistics to count the events in
+     * @param metrics The metrics of the appender
+     * @param counting Indication whether the events are counted per logger
+     */
+    MeteredAppender(Appender appender, Statistics statistics, AppenderStatistics metrics, boolean counting) {
+        this.appender = appender;
+        this.statistics = statistics;
+        this.metrics = metrics;
+        this.counting = counting;
+    }
+
+    /**
+     * Return the measured appender.
+     */
+    Appender getAppender() {
+        return appender;
+    }
+
+    @Override
+    public void doAppend(LoggingEvent event) {
+        if (counting)
+            statistics.count(event);
+        long start = System.nanoTime();
+        try {
+            appender.doAppend(event);
+        } finally {
+            metrics.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void addFilter(Filter newFilter) {
+        appender.addFilter(newFilter);
+    }
+
+    @Override
+    public Filter getFilter() {
+        return appender.getFilter();
+    }
+
+    @Override
+    public void clearFilters() {
+        appender.clearFilters();
+    }
+
+    @Override
+    public void close() {
+        appender.close();
+    }
+
+    @Override
+    public String getName() {
+        return appender.getName();
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        appender.setErrorHandler(errorHandler);
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return appender.getErrorHandler();
+    }
+
+    @Override
+    public void setLayout(Layout layout) {
+        appender.setLayout(layout);
+    }
+
+    @Override
+    public Layout getLayout() {
+        return appender.getLayout();
+    }
+
+    @Override
+    public void setName(String name) {
+        appender.setName(name);
+    }
+
+    @Override
+    public boolean requiresLayout() {
+        return appender.requiresLayout();
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Hierarchy;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.apache.log4j.config.PropertySetter;
+import org.apache.log4j.helpers.Loader;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.or.ObjectRenderer;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggerFactory;
+import org.apache.log4j.spi.LoggerRepository;
+import org.apache.log4j.spi.RendererSupport;
+import org.apache.log4j.spi.RootLogger;
+import org.apache.log4j.spi.ThrowableRendererSupport;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.apache.log4j.xml.Log4jEntityResolver;
+import org.apache.log4j.xml.SAXErrorHandler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Applies a log4j configuration file to the running log4j without resetting
+ * it. The file is configured on a separate hierarchy, after which only the
+ * differences are applied to the loggers in use: levels and additivity are
+ * set and the appenders of a logger are swapped while holding the lock of
+ * the logger, so logging never goes without appenders. Appenders whose
+ * definition did not change are kept, including the appenders they refer to.
+ * Replaced appenders are closed after the swap. A file whose contents did not
+ * change since it was last applied is skipped. The object renderers are
+ * replaced when their definitions changed and loggers created for the
+ * configuration use its logger factory. With statistics, the
+ * appenders are replaced by {@link MeteredAppender}s and the time each
+ * applied configuration took is recorded.
+ */
+class Reconfigurator {
+    private static final String APPENDER_PREFIX = "log4j.appender.";
+    private static final String APPENDER_TAG = "appender";
+    private static final String APPENDER_REF_TAG = "appender-ref";
+    private static final String RENDERER_PREFIX = "log4j.renderer.";
+    private static final String RENDERER_TAG = "renderer";
+    private static final String LOGGER_FACTORY_KEY = "log4j.loggerFactory";
+    // Option of a ring buffer appender with the names of its appenders
+    private static final String APPENDERS_OPTION = "Appenders";
+    // The file and the hash of the contents that were applied last
+    private String file;
+    private String hash;
+    // The definitions of the appenders that were applied last, by name
+    private Map<String, String> definitions = new HashMap<String, String>();
+    // The rendering class per rendered class that were applied last
+    private Map<String, String> renderers = new TreeMap<String, String>();
+    private final Statistics statistics;
+    // The state of the configuration being applied
+    private Map<String, Appender> live;
+    private Map<String, String> next;
+    private Map<String, List<String>> references;
+    private Map<String, String> nextRenderers;
+    private LoggerFactory factory;
+
+    /**
+     * Create the reconfigurator.
+     *
+     * @param statistics The statistics to measure the reconfigurations and,
+     * if it meters them, the appenders with. Null to not measure anything
+     */
+    Reconfigurator(Statistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Apply a configuration file. XML files are read with the DOM
+     * configurator, files ending with ".properties" with the property
+     * configurator.
+     *
+     * @param path The path of the configuration file
+     * @return True if applied, false if the file did not change or could not
+     * be read
+     */
+    synchronized boolean configure(String path) {
+        long start = System.nanoTime();
+        byte[] content;
+        try {
+            content = read(new File(path));
+        } catch (IOException exc) {
+            LogLog.error("Could not read configuration file [" + path + "].", exc);
+            return false;
+        }
+        String current = hash(content);
+        if (path.equals(file) && current.equals(hash))
+            return false;
+        live = new HashMap<String, Appender>();
+        for (Appender appender : appenders(LogManager.getLoggerRepository())) {
+            live.put(appender.getName(), appender);
+        }
+        next = new HashMap<String, String>();
+        references = new HashMap<String, List<String>>();
+        nextRenderers = new TreeMap<String, String>();
+        factory = null;
+        Hierarchy target = new Hierarchy(new RootLogger(Level.DEBUG));
+        try {
+            boolean parsed = path.endsWith(".properties") ? properties(path, content, target)
+                    : xml(path, content, target);
+            if (!parsed)
+                return false;
+            apply(target);
+            file = path;
+            hash = current;
+            definitions = next;
+            renderers = nextRenderers;
+            if (statistics != null)
+                statistics.reconfigured(System.nanoTime() - start);
+            return true;
+        } finally {
+            live = null;
+            next = null;
+            references = null;
+            nextRenderers = null;
+            factory = null;
+        }
+    }
+
+    /**
+     * Configure a hierarchy with the contents of a property file.
+     */
+    private boolean properties(String path, byte[] content, LoggerRepository target) {
+        Properties props = new Properties();
+        try {
+            props.load(new ByteArrayInputStream(content));
+        } catch (IOException exc) {
+            LogLog.error("Could not read configuration file [" + path + "].", exc);
+            return false;
+        }
+        // Collect the definition of every appender.
+        Map<String, Map<String, String>> defs = new HashMap<String, Map<String, String>>();
+        for (String key : props.stringPropertyNames()) {
+            if (!key.startsWith(APPENDER_PREFIX))
+                continue;
+            int dot = key.indexOf('.', APPENDER_PREFIX.length());
+            String name = key.substring(APPENDER_PREFIX.length(), dot < 0 ? key.length() : dot);
+            Map<String, String> def = defs.get(name);
+            if (def == null) {
+                def = new TreeMap<String, String>();
+                defs.put(name, def);
+            }
+            def.put(key, props.getProperty(key));
+        }
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(RENDERER_PREFIX))
+                nextRenderers.put(key.substring(RENDERER_PREFIX.length()), props.getProperty(key).trim());
+        }
+        for (Map.Entry<String, Map<String, String>> entry : defs.entrySet()) {
+            String name = entry.getKey();
+            next.put(name, entry.getValue().toString());
+            String names = props.getProperty(APPENDER_PREFIX + name + "." + APPENDERS_OPTION);
+            references.put(name, names == null ? Collections.<String>emptyList() : split(names));
+        }
+        final Set<String> reusable = reusable();
+        new PropertyConfigurator() {
+            @SuppressWarnings({ "synthetic-access", "unchecked" })
+            @Override
+            public void doConfigure(Properties properties, LoggerRepository repository) {
+                // Appenders in the registry are used instead of new ones.
+                for (String name : reusable) {
+                    registry.put(name, live.get(name));
+                }
+                super.doConfigure(properties, repository);
+                if (properties.getProperty(LOGGER_FACTORY_KEY) != null)
+                    factory = loggerFactory;
+            }
+        }.doConfigure(props, target);
+        // Property files cannot refer to appenders from an appender, so
+        // attach the appenders of new ring buffer appenders.
+        Map<String, Appender> created = new HashMap<String, Appender>();
+        for (Appender appender : appenders(target)) {
+            created.put(appender.getName(), appender);
+        }
+        for (Appender appender : created.values().toArray(new Appender[created.size()])) {
+            if (!(appender instanceof RingBufferAppender) || reusable.contains(appender.getName()))
+                continue;
+            RingBufferAppender async = (RingBufferAppender) appender;
+            if (async.getAppenders() == null)
+                continue;
+            for (String name : split(async.getAppenders())) {
+                Appender attached = reusable.contains(name) ? live.get(name) : created.get(name);
+                if (attached == null) {
+                    attached = create(props, name);
+                    if (attached == null)
+                        continue;
+                    created.put(name, attached);
+                }
+                async.addAppender(attached);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create an appender that is defined in a property file, the way the
+     * property configurator does.
+     */
+    private static Appender create(Properties props, String name) {
+        String prefix = APPENDER_PREFIX + name;
+        Appender appender = (Appender) OptionConverter.instantiateByKey(props, prefix, Appender.class, null);
+        if (appender == null) {
+            LogLog.error("Could not find appender [" + name + "].");
+            return null;
+        }
+        appender.setName(name);
+        if (appender.requiresLayout()) {
+            Layout layout = (Layout) OptionConverter.instantiateByKey(props, prefix + ".layout", Layout.class, null);
+            if (layout != null) {
+                appender.setLayout(layout);
+                PropertySetter.setProperties(layout, props, prefix + ".layout.");
+            }
+        }
+        PropertySetter.setProperties(appender, props, prefix + ".");
+        return appender;
+    }
+
+    /**
+     * Configure a hierarchy with the contents of an XML file.
+     */
+    private boolean xml(String path, byte[] content, LoggerRepository target) {
+        Document doc;
+        try {
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setValidating(true);
+            DocumentBuilder builder = dbf.newDocumentBuilder();
+            builder.setErrorHandler(new SAXErrorHandler());
+            builder.setEntityResolver(new Log4jEntityResolver());
+            doc = builder.parse(new ByteArrayInputStream(content));
+        } catch (Exception exc) {
+            LogLog.error("Could not parse configuration file [" + path + "].", exc);
+            return false;
+        }
+        NodeList elements = doc.getElementsByTagName(APPENDER_TAG);
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            String name = element.getAttribute("name");
+            StringBuilder def = new StringBuilder();
+            describe(element, def);
+            next.put(name, def.toString());
+            List<String> refs = new ArrayList<String>();
+            NodeList children = element.getElementsByTagName(APPENDER_REF_TAG);
+            for (int j = 0; j < children.getLength(); j++) {
+                refs.add(OptionConverter.substVars(((Element) children.item(j)).getAttribute("ref"), null));
+            }
+            references.put(name, refs);
+        }
+        elements = doc.getElementsByTagName(RENDERER_TAG);
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            nextRenderers.put(OptionConverter.substVars(element.getAttribute("renderedClass"), null),
+                    OptionConverter.substVars(element.getAttribute("renderingClass"), null));
+        }
+        final Set<String> reusable = reusable();
+        new DOMConfigurator() {
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public void doConfigure(Element element, LoggerRepository repository) {
+                super.doConfigure(element, repository);
+                factory = catFactory;
+            }
+
+            @SuppressWarnings("synthetic-access")
+            @Override
+            protected Appender findAppenderByReference(Element appenderRef) {
+                String name = subst(appenderRef.getAttribute("ref"));
+                if (reusable.contains(name))
+                    return live.get(name);
+                return super.findAppenderByReference(appenderRef);
+            }
+        }.doConfigure(doc.getDocumentElement(), target);
+        return true;
+    }
+
+    /**
+     * Describe an element with its attributes and contents, so equal
+     * definitions get equal descriptions regardless of formatting.
+     */
+    private static void describe(Node node, StringBuilder out) {
+        if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+            out.append(node.getNodeValue().trim());
+            return;
+        }
+        if (node.getNodeType() != Node.ELEMENT_NODE)
+            return;
+        out.append('<').append(node.getNodeName());
+        NamedNodeMap attributes = node.getAttributes();
+        String[] attrs = new String[attributes.getLength()];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = attributes.item(i).getNodeName() + "=\"" + attributes.item(i).getNodeValue() + "\"";
+        }
+        Arrays.sort(attrs);
+        for (String attr : attrs) {
+            out.append(' ').append(attr);
+        }
+        out.append('>');
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            describe(child, out);
+        }
+        out.append("</").append(node.getNodeName()).append('>');
+    }
+
+    /**
+     * Return the names of the appenders in use that can be kept. Their
+     * definition must be the same as the applied one, and the same holds for
+     * the appenders they refer to.
+     */
+    private Set<String> reusable() {
+        Set<String> reusable = new HashSet<String>();
+        for (String name : next.keySet()) {
+            if (unchanged(name, new HashSet<String>()))
+                reusable.add(name);
+        }
+        return reusable;
+    }
+
+    private boolean unchanged(String name, Set<String> checking) {
+        String def = next.get(name);
+        if (def == null || !def.equals(definitions.get(name)) || !live.containsKey(name))
+            return false;
+        // A reference back to an appender being checked does not change it.
+        if (!checking.add(name))
+            return true;
+        for (String ref : references.get(name)) {
+            if (!unchanged(ref, checking))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Apply the configured hierarchy to the running one. The appenders that
+     * are no longer used afterwards are closed.
+     */
+    private void apply(Hierarchy target) {
+        LoggerRepository repository = LogManager.getLoggerRepository();
+        Set<Appender> before = appenders(repository);
+        meterAttached(target, before);
+        repository.setThreshold(target.getThreshold());
+        if (repository instanceof ThrowableRendererSupport)
+            ((ThrowableRendererSupport) repository).setThrowableRenderer(target.getThrowableRenderer());
+        if (!nextRenderers.equals(renderers) && repository instanceof RendererSupport)
+            render((RendererSupport) repository, target);
+        // Create the configured loggers that are not used yet, so they are updated as well.
+        for (Enumeration<?> e = target.getCurrentLoggers(); e.hasMoreElements();) {
+            String name = ((Logger) e.nextElement()).getName();
+            if (factory == null) {
+                repository.getLogger(name);
+            } else {
+                repository.getLogger(name, factory);
+            }
+        }
+        update(repository.getRootLogger(), target.getRootLogger());
+        for (Enumeration<?> e = repository.getCurrentLoggers(); e.hasMoreElements();) {
+            Logger logger = (Logger) e.nextElement();
+            update(logger, target.exists(logger.getName()));
+        }
+        Set<Appender> after = appenders(repository);
+        if (statistics != null)
+            statistics.track(after);
+        List<Appender> retired = new ArrayList<Appender>();
+        for (Appender appender : before) {
+            if (!after.contains(appender))
+                retired.add(appender);
+        }
+        // Write the buffered events before the appenders they go to are closed.
+        for (Appender appender : retired) {
+            if (appender instanceof RingBufferAppender)
+                ((RingBufferAppender) appender).drain();
+        }
+        for (Appender appender : retired) {
+            if (appender instanceof AppenderAttachable) {
+                AppenderAttachable attachable = (AppenderAttachable) appender;
+                for (Appender attached : list(attachable.getAllAppenders())) {
+                    if (after.contains(Statistics.unwrap(attached)))
+                        attachable.removeAppender(attached);
+                }
+            }
+            appender.close();
+            if (statistics != null)
+                statistics.forget(appender);
+        }
+    }
+
+    /**
+     * Replace the object renderers of the running hierarchy by the configured
+     * ones.
+     */
+    private void render(RendererSupport repository, Hierarchy target) {
+        repository.getRendererMap().clear();
+        for (String name : nextRenderers.keySet()) {
+            try {
+                Class<?> rendered = Loader.loadClass(name);
+                ObjectRenderer renderer = target.getRendererMap().get(rendered);
+                if (renderer != null)
+                    repository.setRenderer(rendered, renderer);
+            } catch (ClassNotFoundException exc) {
+                // Reported by the configurator.
+            }
+        }
+    }
+
+    /**
+     * Meter the appenders attached to the new appenders of a configured
+     * hierarchy. This is done before the new appenders are used, so no event
+     * is missed or delivered twice. The attachments of kept appenders were
+     * metered when they were new.
+     */
+    private void meterAttached(Hierarchy target, Set<Appender> before) {
+        if (statistics == null || !statistics.isMetering())
+            return;
+        for (Appender appender : appenders(target)) {
+            if (!(appender instanceof AppenderAttachable) || before.contains(appender))
+                continue;
+            AppenderAttachable attachable = (AppenderAttachable) appender;
+            List<Appender> current = list(attachable.getAllAppenders());
+            for (Appender attached : current) {
+                attachable.removeAppender(attached);
+            }
+            for (Appender attached : current) {
+                attachable.addAppender(meter(attached, false));
+            }
+        }
+    }
+
+    private Appender meter(Appender appender, boolean counting) {
+        return statistics == null || !statistics.isMetering() ? appender : statistics.meter(appender, counting);
+    }
+
+    /**
+     * Update a running logger to its configured state.
+     *
+     * @param logger The running logger
+     * @param config The configured logger, null if the logger is not
+     * configured
+     */
+    private void update(Logger logger, Logger config) {
+        Level level = config == null ? null : config.getLevel();
+        if (level == null ? logger.getLevel() != null : !level.equals(logger.getLevel()))
+            logger.setLevel(level);
+        boolean additivity = config == null || config.getAdditivity();
+        if (logger.getAdditivity() != additivity)
+            logger.setAdditivity(additivity);
+        List<Appender> appenders = new ArrayList<Appender>();
+        if (config != null) {
+            for (Appender appender : list(config.getAllAppenders())) {
+                appenders.add(meter(appender, true));
+            }
+        }
+        // Loggers call their appenders holding their lock, so the swap is atomic.
+        synchronized (logger) {
+            List<Appender> current = list(logger.getAllAppenders());
+            if (current.equals(appenders))
+                return;
+            for (Appender appender : current) {
+                logger.removeAppender(appender);
+            }
+            for (Appender appender : appenders) {
+                logger.addAppender(appender);
+            }
+        }
+    }
+
+    /**
+     * Return the appenders of the loggers of a repository, including the
+     * appenders attached to those appenders. Metered appenders are returned
+     * as the appender they measure.
+     */
+    private static Set<Appender> appenders(LoggerRepository repository) {
+        Set<Appender> appenders = Collections.newSetFromMap(new IdentityHashMap<Appender, Boolean>());
+        collect(list(repository.getRootLogger().getAllAppenders()), appenders);
+        for (Enumeration<?> e = repository.getCurrentLoggers(); e.hasMoreElements();) {
+            collect(list(((Logger) e.nextElement()).getAllAppenders()), appenders);
+        }
+        return appenders;
+    }
+
+    private static void collect(List<Appender> list, Set<Appender> appenders) {
+        for (Appender appender : list) {
+            appender = Statistics.unwrap(appender);
+            if (appenders.add(appender) && appender instanceof AppenderAttachable)
+                collect(list(((AppenderAttachable) appender).getAllAppenders()), appenders);
+        }
+    }
+
+    private static List<Appender> list(Enumeration<?> e) {
+        List<Appender> list = new ArrayList<Appender>();
+        while (e != null && e.hasMoreElements()) {
+            list.add((Appender) e.nextElement());
+        }
+        return list;
+    }
+
+    private static List<String> split(String names) {
+        List<String> list = new ArrayList<String>();
+        for (String name : names.split(",")) {
+            if (name.trim().length() > 0)
+                list.add(name.trim());
+        }
+        return list;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] content = new byte[(int) file.length()];
+            int length = 0;
+            for (int n; length < content.length && (n = in.read(content, length, content.length - length)) > 0;) {
+                length += n;
+            }
+            return length == content.length ? content : Arrays.copyOf(content, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            StringBuilder builder = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+}
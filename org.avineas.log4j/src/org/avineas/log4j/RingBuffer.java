@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded queue on a ring buffer that does not use locks. Every slot has a
+ * sequence number that tells whether it can be written or read for a position,
+ * so producers and consumers only compete on a compare-and-set of the position.
+ * Any number of threads may offer and poll.
+ *
+ * @param <E> The type of the elements
+ */
+class RingBuffer<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    // The position of the next offer and the next poll
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Create a buffer.
+     *
+     * @param size The minimal capacity, rounded up to a power of two
+     */
+    RingBuffer(int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        elements = new AtomicReferenceArray<E>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Add an element.
+     *
+     * @return True if added, false if the buffer is full
+     */
+    boolean offer(E element) {
+        for (;;) {
+            long pos = head.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    elements.set(index, element);
+                    // Publish the element to the consumers.
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest element.
+     *
+     * @return The element, or null if the buffer is empty
+     */
+    E poll() {
+        for (;;) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    E element = elements.get(index);
+                    elements.set(index, null);
+                    // Free the slot for the offer one round further.
+                    sequences.set(index, pos + mask + 1);
+                    return element;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Remove a number of elements.
+     *
+     * @param into The array to put the elements in, its length is the maximum
+     * @return The number of elements removed
+     */
+    int drain(E[] into) {
+        int count = 0;
+        while (count < into.length) {
+            E element = poll();
+            if (element == null)
+                break;
+            into[count++] = element;
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of elements, including the ones being added.
+     */
+    int size() {
+        return (int) Math.max(0, head.get() - tail.get());
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
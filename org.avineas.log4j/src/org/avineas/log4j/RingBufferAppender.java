@@ -0,0 +1,384 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Asynchronous appender on a ring buffer. Logging threads put their events in
+ * the buffer without taking a lock, a single thread writes them in batches to
+ * the attached appenders. The appender is configured like any other appender.
+ * In XML the appenders to write to are given with appender-ref elements, in a
+ * property file with the Appenders option, a comma separated list of names:
+ * <pre>
+ * log4j.appender.ASYNC=org.avineas.log4j.RingBufferAppender
+ * log4j.appender.ASYNC.Appenders=FILE
+ * log4j.appender.ASYNC.OverflowPolicy=Drop
+ * </pre>
+ * The overflow policy determines what happens when the buffer is full. With
+ * Block (the default) the logging thread waits for room, with Drop events
+ * below the DropLevel are dropped and the others wait, with DiscardOldest the
+ * oldest event in the buffer is discarded. The numbers of dropped and
+ * discarded events are counted. Closing the appender writes the events that
+ * are still in the buffer.
+ */
+public class RingBufferAppender extends AppenderSkeleton implements AppenderAttachable {
+    private static final String BLOCK = "Block";
+    private static final String DROP = "Drop";
+    private static final String DISCARD_OLDEST = "DiscardOldest";
+    // Time a blocked logging thread waits before it tries again
+    private static final long BACKOFF = 50000L;
+    // Time the dispatcher waits for events before it checks again, in case a wakeup is missed
+    private static final long IDLE = 1000000000L;
+    private final AppenderAttachableImpl appenders = new AppenderAttachableImpl();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private int bufferSize = 1024;
+    private int batchSize = 128;
+    private String overflowPolicy = BLOCK;
+    private Level dropLevel = Level.WARN;
+    private boolean locationInfo;
+    private String appenderNames;
+    private RingBuffer<LoggingEvent> buffer;
+    private Thread dispatcher;
+    private volatile boolean closing;
+    // Set by the dispatcher when it waits for events
+    private volatile boolean waiting;
+
+    /**
+     * Append an event. Overrides the synchronized implementation of the base
+     * class, so logging threads do not contend on the appender.
+     */
+    @Override
+    public void doAppend(LoggingEvent event) {
+        if (closing) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (!isAsSevereAsThreshold(event.getLevel()))
+            return;
+        for (Filter filter = getFirstFilter(); filter != null; filter = filter.getNext()) {
+            int decision = filter.decide(event);
+            if (decision == Filter.DENY)
+                return;
+            if (decision == Filter.ACCEPT)
+                break;
+        }
+        append(event);
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        RingBuffer<LoggingEvent> buf = buffer;
+        if (buf == null) {
+            errorHandler.error("Appender " + name + " is not activated", null, ErrorCode.GENERIC_FAILURE);
+            return;
+        }
+        // Take the values that depend on the logging thread now.
+        event.getNDC();
+        event.getThreadName();
+        event.getMDCCopy();
+        if (locationInfo)
+            event.getLocationInformation();
+        event.getRenderedMessage();
+        event.getThrowableStrRep();
+        while (!buf.offer(event)) {
+            if (overflowPolicy == DISCARD_OLDEST) {
+                if (buf.poll() != null)
+                    discarded.incrementAndGet();
+                continue;
+            }
+            // Do not wait for the dispatcher on the dispatcher itself, or when
+            // the wait cannot succeed.
+            if ((overflowPolicy == DROP && !event.getLevel().isGreaterOrEqual(dropLevel))
+                    || closing || Thread.currentThread() == dispatcher
+                    || Thread.currentThread().isInterrupted()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(dispatcher);
+            LockSupport.parkNanos(this, BACKOFF);
+        }
+        if (waiting)
+            LockSupport.unpark(dispatcher);
+    }
+
+    /**
+     * Create the buffer and start the dispatcher.
+     */
+    @Override
+    public void activateOptions() {
+        if (buffer != null)
+            return;
+        buffer = new RingBuffer<LoggingEvent>(bufferSize);
+        dispatcher = new Thread(new Dispatcher(), "RingBufferAppender-" + name);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Close the appender. Waits for the dispatcher to write the events in the
+     * buffer and closes the attached appenders.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        drain();
+        synchronized (appenders) {
+            for (Enumeration<?> e = appenders.getAllAppenders(); e != null && e.hasMoreElements();) {
+                ((Appender) e.nextElement()).close();
+            }
+        }
+        if (dropped.get() > 0 || discarded.get() > 0)
+            LogLog.warn("Appender " + name + " dropped " + dropped.get() + " and discarded "
+                    + discarded.get() + " events");
+    }
+
+    /**
+     * Stop the dispatcher after it has written the events in the buffer. The
+     * attached appenders are not closed. Events appended afterwards are
+     * dropped.
+     */
+    void drain() {
+        closing = true;
+        if (dispatcher == null)
+            return;
+        LockSupport.unpark(dispatcher);
+        try {
+            dispatcher.join();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        // Events that arrived while the dispatcher stopped.
+        dispatch(new LoggingEvent[batchSize]);
+    }
+
+    /**
+     * Write the events in the buffer to the attached appenders.
+     *
+     * @return The number of events written
+     */
+    private int dispatch(LoggingEvent[] batch) {
+        int total = 0;
+        for (int count; (count = buffer.drain(batch)) > 0;) {
+            synchronized (appenders) {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        appenders.appendLoopOnAppenders(batch[i]);
+                    } catch (RuntimeException exc) {
+                        errorHandler.error("Appender " + name + " failed to write", exc,
+                                ErrorCode.WRITE_FAILURE);
+                    }
+                    batch[i] = null;
+                }
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private class Dispatcher implements Runnable {
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void run() {
+            LoggingEvent[] batch = new LoggingEvent[batchSize];
+            for (;;) {
+                if (dispatch(batch) > 0)
+                    continue;
+                if (closing)
+                    break;
+                waiting = true;
+                // Check again, an event may have been added before waiting was set.
+                if (buffer.size() == 0 && !closing)
+                    LockSupport.parkNanos(this, IDLE);
+                waiting = false;
+            }
+        }
+    }
+
+    @Override
+    public boolean requiresLayout() {
+        return false;
+    }
+
+    @Override
+    public void addAppender(Appender appender) {
+        synchronized (appenders) {
+            appenders.addAppender(appender);
+        }
+    }
+
+    @Override
+    public Enumeration<?> getAllAppenders() {
+        synchronized (appenders) {
+            return appenders.getAllAppenders();
+        }
+    }
+
+    @Override
+    public Appender getAppender(String appenderName) {
+        synchronized (appenders) {
+            return appenders.getAppender(appenderName);
+        }
+    }
+
+    @Override
+    public boolean isAttached(Appender appender) {
+        synchronized (appenders) {
+            return appenders.isAttached(appender);
+        }
+    }
+
+    @Override
+    public void removeAllAppenders() {
+        synchronized (appenders) {
+            appenders.removeAllAppenders();
+        }
+    }
+
+    @Override
+    public void removeAppender(Appender appender) {
+        synchronized (appenders) {
+            appenders.removeAppender(appender);
+        }
+    }
+
+    @Override
+    public void removeAppender(String appenderName) {
+        synchronized (appenders) {
+            appenders.removeAppender(appenderName);
+        }
+    }
+
+    /**
+     * Set the size of the buffer. Is rounded up to a power of two.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the maximum number of events written to the attached appenders at
+     * once.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the overflow policy: Block, Drop or DiscardOldest.
+     */
+    public void setOverflowPolicy(String policy) {
+        if (BLOCK.equalsIgnoreCase(policy)) {
+            overflowPolicy = BLOCK;
+        } else if (DROP.equalsIgnoreCase(policy)) {
+            overflowPolicy = DROP;
+        } else if (DISCARD_OLDEST.equalsIgnoreCase(policy)) {
+            overflowPolicy = DISCARD_OLDEST;
+        } else {
+            LogLog.warn("Unknown overflow policy " + policy + " of appender " + name + ", using " + BLOCK);
+            overflowPolicy = BLOCK;
+        }
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set the level below which events are dropped when the buffer is full
+     * and the overflow policy is Drop.
+     */
+    public void setDropLevel(Level dropLevel) {
+        this.dropLevel = dropLevel;
+    }
+
+    public Level getDropLevel() {
+        return dropLevel;
+    }
+
+    /**
+     * Set whether the location information of events must be kept. Taking
+     * the location is expensive.
+     */
+    public void setLocationInfo(boolean locationInfo) {
+        this.locationInfo = locationInfo;
+    }
+
+    public boolean getLocationInfo() {
+        return locationInfo;
+    }
+
+    /**
+     * Set the names of the appenders to write to, comma separated. Used for
+     * property file configurations, which cannot refer to appenders from an
+     * appender.
+     */
+    public void setAppenders(String appenderNames) {
+        this.appenderNames = appenderNames;
+    }
+
+    public String getAppenders() {
+        return appenderNames;
+    }
+
+    /**
+     * Return the number of events dropped because the buffer was full or the
+     * appender was closed.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Return the number of events discarded to make room for newer ones.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Return the number of events in the buffer.
+     */
+    public int getQueueSize() {
+        RingBuffer<LoggingEvent> buf = buffer;
+        return buf == null ? 0 : buf.size();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.spi.LoggingEvent;
+import org.avineas.log4j.metrics.AppenderMetrics;
+import org.avineas.log4j.metrics.LoggerMetrics;
+import org.avineas.log4j.metrics.LoggingMetrics;
+
+/**
+ * Implementation of the logging metrics. The counters on the logging path are
+ * striped, so counting does not make logging threads contend. The appenders
+ * are only metered on request, since the loggers then return the
+ * {@link MeteredAppender}s instead of the configured appenders.
+ */
+class Statistics implements LoggingMetrics {
+    // The number of reconfiguration times kept
+    private static final int TIMES = 16;
+    private final ConcurrentMap<String, LoggerStatistics> loggers = new ConcurrentHashMap<String, LoggerStatistics>();
+    private final ConcurrentMap<String, AppenderStatistics> appenders = new ConcurrentHashMap<String, AppenderStatistics>();
+    // An event passes all appenders of its logger and the parents. The last
+    // event counted by a thread is compared by reference, so it is counted
+    // exactly once. The reference is weak, so the event itself is not kept.
+    private final ThreadLocal<WeakReference<LoggingEvent>> last = new ThreadLocal<WeakReference<LoggingEvent>>();
+    private final boolean metering;
+    // The metered appenders of the loggers and of appenders, per appender
+    private final Map<Appender, MeteredAppender> metered = new IdentityHashMap<Appender, MeteredAppender>();
+    private final Map<Appender, MeteredAppender> attached = new IdentityHashMap<Appender, MeteredAppender>();
+    private final long[] times = new long[TIMES];
+    private long reconfigurations;
+    private volatile LogBridge bridge;
+
+    /**
+     * Create the statistics.
+     *
+     * @param metering Indication whether the appenders are metered
+     */
+    Statistics(boolean metering) {
+        this.metering = metering;
+    }
+
+    boolean isMetering() {
+        return metering;
+    }
+
+    /**
+     * Count an event for its logger, unless it was counted already.
+     */
+    void count(LoggingEvent event) {
+        WeakReference<LoggingEvent> counted = last.get();
+        if (counted != null && counted.get() == event)
+            return;
+        last.set(new WeakReference<LoggingEvent>(event));
+        String name = event.getLoggerName();
+        LoggerStatistics statistics = loggers.get(name);
+        if (statistics == null) {
+            statistics = new LoggerStatistics();
+            LoggerStatistics existing = loggers.putIfAbsent(name, statistics);
+            if (existing != null)
+                statistics = existing;
+        }
+        statistics.count(event.getLevel());
+    }
+
+    private AppenderStatistics appender(String name) {
+        AppenderStatistics statistics = appenders.get(name);
+        if (statistics == null) {
+            statistics = new AppenderStatistics();
+            AppenderStatistics existing = appenders.putIfAbsent(name, statistics);
+            if (existing != null)
+                statistics = existing;
+        }
+        return statistics;
+    }
+
+    /**
+     * Return the metered appender of an appender. The same appender gives the
+     * same metered appender.
+     *
+     * @param appender The appender
+     * @param counting True for the appenders of loggers, which count the
+     * events per logger. False for the appenders attached to appenders
+     * @return The metered appender
+     */
+    synchronized Appender meter(Appender appender, boolean counting) {
+        if (appender instanceof MeteredAppender)
+            return appender;
+        Map<Appender, MeteredAppender> map = counting ? metered : attached;
+        MeteredAppender meter = map.get(appender);
+        if (meter == null) {
+            AppenderStatistics statistics = appender(appender.getName());
+            statistics.setAppender(appender);
+            meter = new MeteredAppender(appender, this, statistics, counting);
+            map.put(appender, meter);
+        }
+        return meter;
+    }
+
+    /**
+     * Register the appenders in use, so the queues of asynchronous appenders
+     * are available without metering.
+     */
+    void track(Collection<Appender> live) {
+        for (Appender appender : live) {
+            if (appender.getName() != null)
+                appender(appender.getName()).setAppender(appender);
+        }
+    }
+
+    /**
+     * Release the state of the calling thread, called when the bundle stops.
+     */
+    void close() {
+        last.remove();
+    }
+
+    /**
+     * Forget the metered appenders of an appender that is no longer used.
+     */
+    synchronized void forget(Appender appender) {
+        metered.remove(appender);
+        attached.remove(appender);
+    }
+
+    /**
+     * Return the appender that is metered by an appender.
+     */
+    static Appender unwrap(Appender appender) {
+        return appender instanceof MeteredAppender ? ((MeteredAppender) appender).getAppender() : appender;
+    }
+
+    /**
+     * Record the time applying a configuration took.
+     */
+    synchronized void reconfigured(long nanos) {
+        times[(int) (reconfigurations++ % TIMES)] = nanos / 1000L;
+    }
+
+    void setBridge(LogBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    @Override
+    public Map<String, LoggerMetrics> getLoggers() {
+        return new TreeMap<String, LoggerMetrics>(loggers);
+    }
+
+    @Override
+    public Map<String, AppenderMetrics> getAppenders() {
+        return new TreeMap<String, AppenderMetrics>(appenders);
+    }
+
+    @Override
+    public synchronized long getReconfigurations() {
+        return reconfigurations;
+    }
+
+    @Override
+    public synchronized long[] getReconfigurationTimes() {
+        int count = (int) Math.min(TIMES, reconfigurations);
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = times[(int) ((reconfigurations - count + i) % TIMES)];
+        }
+        return result;
+    }
+
+    @Override
+    public long getBridgeDelivered() {
+        LogBridge current = bridge;
+        return current == null ? 0 : current.getDelivered();
+    }
+
+    @Override
+    public long getBridgeDropped() {
+        LogBridge current = bridge;
+        return current == null ? 0 : current.getDropped();
+    }
+
+    @Override
+    public int getBridgeQueueSize() {
+        LogBridge current = bridge;
+        return current == null ? 0 : current.getQueueSize();
+    }
+
+    @Override
+    public long getBridgeLag() {
+        LogBridge current = bridge;
+        return current == null ? 0 : current.getLag();
+    }
+
+    @Override
+    public long getBridgeMaxLag() {
+        LogBridge current = bridge;
+        return current == null ? 0 : current.getMaxLag();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A number of counters that are spread over stripes, so threads that count at
+ * the same time mostly update different cache lines. The stripe is chosen by
+ * the id of the thread. Reading a counter adds up its stripes.
+ */
+class StripedCounters {
+    // Longs per cache line
+    private static final int LINE = 8;
+    private static final int STRIPES = stripes();
+    private final AtomicLongArray cells;
+    private final int stride;
+
+    /**
+     * Create the counters.
+     *
+     * @param size The number of counters
+     */
+    StripedCounters(int size) {
+        // Every stripe starts on its own cache line.
+        stride = (size + LINE - 1) / LINE * LINE;
+        cells = new AtomicLongArray(STRIPES * stride);
+    }
+
+    // A power of two of at least the number of processors, at most 64
+    private static int stripes() {
+        int processors = Math.min(64, Runtime.getRuntime().availableProcessors());
+        return Integer.highestOneBit(Math.max(2, processors) - 1) << 1;
+    }
+
+    void add(int counter, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.getAndAdd(stripe * stride + counter, delta);
+    }
+
+    long get(int counter) {
+        long sum = 0;
+        for (int i = counter; i < cells.length(); i += stride) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
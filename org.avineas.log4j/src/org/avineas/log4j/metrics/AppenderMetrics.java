@@ -0,0 +1,56 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j.metrics;
+
+/**
+ * Metrics of a single appender. The latency is the time a call to the
+ * appender takes, including the wait for other threads using the appender.
+ */
+public interface AppenderMetrics {
+    /**
+     * @return The number of events given to the appender
+     */
+    long getAppends();
+
+    /**
+     * @return The mean latency, in nanoseconds
+     */
+    long getMeanLatency();
+
+    /**
+     * @return The maximum latency, in nanoseconds
+     */
+    long getMaxLatency();
+
+    /**
+     * @return The latency histogram. Element 0 counts the calls that took
+     * less than a microsecond, element i the calls that took from 2^(i-1) up
+     * to 2^i microseconds. The last element also counts the longer calls
+     */
+    long[] getLatencyHistogram();
+
+    /**
+     * @return The number of events in the queue of an asynchronous appender,
+     * -1 for other appenders
+     */
+    int getQueueSize();
+
+    /**
+     * @return The number of events dropped or discarded by an asynchronous
+     * appender
+     */
+    long getDropped();
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j.metrics;
+
+/**
+ * The number of events of a single logger, per level.
+ */
+public interface LoggerMetrics {
+    long getTrace();
+
+    long getDebug();
+
+    long getInfo();
+
+    long getWarn();
+
+    long getError();
+
+    long getFatal();
+
+    /**
+     * @return The number of events of all levels
+     */
+    long getTotal();
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j.metrics;
+
+import java.util.Map;
+
+import javax.management.MXBean;
+
+/**
+ * Metrics of logging through log4j. Registered as a service and as the MBean
+ * "org.avineas.log4j:type=Metrics".
+ */
+@MXBean
+public interface LoggingMetrics {
+    /**
+     * @return The events per logger, mapped by the name of the logger. Only
+     * events that reach an appender are counted, and only when the appenders
+     * are metered
+     */
+    Map<String, LoggerMetrics> getLoggers();
+
+    /**
+     * @return The metrics per appender, mapped by the name of the appender.
+     * The appends and latencies are only measured when the appenders are
+     * metered, the queues are always available
+     */
+    Map<String, AppenderMetrics> getAppenders();
+
+    /**
+     * @return The number of times the configuration was applied
+     */
+    long getReconfigurations();
+
+    /**
+     * @return The time the last configurations took to apply, the most
+     * recent last, in microseconds
+     */
+    long[] getReconfigurationTimes();
+
+    /**
+     * @return The number of log service entries handed to log4j
+     */
+    long getBridgeDelivered();
+
+    /**
+     * @return The number of log service entries dropped because the queue of
+     * the bridge was full
+     */
+    long getBridgeDropped();
+
+    /**
+     * @return The number of log service entries waiting to be handed to log4j
+     */
+    int getBridgeQueueSize();
+
+    /**
+     * @return The time between logging and delivery of the last log service
+     * entry, in milliseconds
+     */
+    long getBridgeLag();
+
+    /**
+     * @return The largest time between logging and delivery of a log service
+     * entry, in milliseconds
+     */
+    long getBridgeMaxLag();
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009-2010 aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.avineas.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of the roll over of a {@link ChannelFileAppender}.
+ */
+public class ChannelFileAppenderTest {
+    private static final int EVENTS = 20;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ChannelFileAppender appender(File file) {
+        ChannelFileAppender appender = new ChannelFileAppender();
+        appender.setName("test");
+        appender.setFile(file.getPath());
+        appender.setLayout(new PatternLayout("%m%n"));
+        appender.setFlushInterval(0);
+        appender.setMaximumFileSize(100);
+        appender.setMaxBackupIndex(1);
+        appender.activateOptions();
+        return appender;
+    }
+
+    private static void log(ChannelFileAppender appender) {
+        Logger logger = Logger.getLogger(ChannelFileAppenderTest.class);
+        for (int i = 0; i < EVENTS; i++) {
+            appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "event " + i, null));
+        }
+        appender.close();
+    }
+
+    private static List<String> lines(File... files) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (File file : files) {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                for (String line; (line = reader.readLine()) != null;) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void rollsOver() throws Exception {
+        File file = new File(folder.getRoot(), "app.log");
+        log(appender(file));
+        File backup = new File(folder.getRoot(), "app.log.1");
+        assertTrue(backup.exists());
+        assertTrue(file.length() <= 100);
+        // Only the events of the file and the last backup are kept.
+        List<String> lines = lines(backup, file);
+        assertEquals("event " + (EVENTS - 1), lines.get(lines.size() - 1));
+    }
+
+    @Test
+    public void appendsWhenTheFileCannotBeRenamed() throws Exception {
+        File file = new File(folder.getRoot(), "app.log");
+        // A directory that is not empty can neither be removed nor replaced.
+        File backup = folder.newFolder("app.log.1");
+        assertTrue(new File(backup, "locked").createNewFile());
+        log(appender(file));
+        List<String> lines = lines(file);
+        assertEquals(EVENTS, lines.size());
+        for (int i = 0; i < EVENTS; i++) {
+            assertEquals("event " + i, lines.get(i));
+        }
+    }
+}